@@ -0,0 +1,24 @@
+package cl.annotation.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The class <b>BenchmarkMain</b> allows to run the benchmarks with the GC profiler, so the allocation rates are reported.<br>
+ * The command line accepts the JMH options, for example <code>java -jar benchmarks.jar -p registrySize=1000 name</code>.
+ */
+public final class BenchmarkMain
+{
+  private BenchmarkMain()
+  {
+  }
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException
+  {
+    new Runner(new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build()).run();
+  }
+}
@@ -0,0 +1,69 @@
+package cl.annotation.benchmark;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.Collection;
+
+import cl.annotation.OSGiNamed;
+
+/**
+ * The class <b>BenchmarkServices</b> allows to declare the synthetic services and the benchmarked injection points.<br>
+ */
+final class BenchmarkServices
+{
+  private BenchmarkServices()
+  {
+  }
+
+  interface IBenchService
+  {
+  }
+
+  @Target({ElementType.TYPE})
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Marked
+  {
+  }
+
+  static class PlainService implements IBenchService
+  {
+  }
+
+  @Marked
+  static class MarkedService implements IBenchService, Runnable
+  {
+    @Override
+    public void run()
+    {
+    }
+  }
+
+  /**
+   * The class <b>InjectionPoints</b> allows to give the qualifier and the type of each benchmarked injection point.<br>
+   */
+  static class InjectionPoints
+  {
+    @OSGiNamed(name = "Service5")
+    IBenchService byName;
+
+    @OSGiNamed(filter = "(component.name=Service5)")
+    IBenchService byNameFilter;
+
+    @OSGiNamed(filter = "(&(group=3)(component.name=Service1*))")
+    IBenchService byFilter;
+
+    @OSGiNamed(property = {"group=3"})
+    IBenchService byProperty;
+
+    @OSGiNamed(bundleName = "bench.bundle.4*", bundleVersionRange = "[1.3,1.4)")
+    IBenchService byBundle;
+
+    @OSGiNamed(property = {"group=3"}, annotation = Marked.class, type = Runnable.class)
+    IBenchService byAnnotationAndType;
+
+    @OSGiNamed(property = {"group=3"})
+    Collection<IBenchService> collection;
+  }
+}
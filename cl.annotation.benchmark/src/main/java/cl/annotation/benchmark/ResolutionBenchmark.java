@@ -0,0 +1,260 @@
+package cl.annotation.benchmark;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.e4.core.di.suppliers.IObjectDescriptor;
+import org.eclipse.e4.core.di.suppliers.IRequestor;
+import org.eclipse.e4.core.di.suppliers.PrimaryObjectSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+
+import cl.annotation.benchmark.BenchmarkServices.IBenchService;
+import cl.annotation.benchmark.BenchmarkServices.InjectionPoints;
+import cl.annotation.benchmark.BenchmarkServices.MarkedService;
+import cl.annotation.benchmark.BenchmarkServices.PlainService;
+import cl.annotation.internal.OSGiNamedObjectSupplier;
+import cl.annotation.test.registry.InMemoryServiceRegistry;
+
+/**
+ * The class <b>ResolutionBenchmark</b> allows to measure {@link OSGiNamedObjectSupplier#get} for each kind of criterion.<br>
+ * The services are registered in an {@link InMemoryServiceRegistry}, so no OSGi framework is launched.
+ * The <code>*Indexed</code> benchmarks use a supplier indexing the 'component.name' and 'group' properties.
+ * The <code>name</code> benchmark is resolved by the component name fast path, <code>nameGeneric</code> selects the same
+ * service with a filter so it is resolved by the generic path.
+ * The <code>*Reinjected</code> benchmarks resolve again for the same requestor while no service changes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolutionBenchmark
+{
+  @Param({"10", "1000", "50000"})
+  int registrySize;
+
+  OSGiNamedObjectSupplier supplier;
+  OSGiNamedObjectSupplier indexedSupplier;
+  IObjectDescriptor byName;
+  IObjectDescriptor byNameFilter;
+  IObjectDescriptor byFilter;
+  IObjectDescriptor byProperty;
+  IObjectDescriptor byBundle;
+  IObjectDescriptor byAnnotationAndType;
+  IObjectDescriptor collection;
+  IRequestor requestor = new BenchmarkRequestor();
+
+  @Setup
+  public void setup() throws ReflectiveOperationException
+  {
+    InMemoryServiceRegistry registry = new InMemoryServiceRegistry();
+    Bundle[] bundles = new Bundle[100];
+    for(int b = 0; b < bundles.length; b++)
+      bundles[b] = registry.installBundle("bench.bundle." + b, "1." + (b % 10) + ".0");
+
+    for(int i = 0; i < registrySize; i++)
+    {
+      Map<String, Object> properties = new HashMap<>();
+      properties.put("component.name", "Service" + i);
+      properties.put("group", String.valueOf(i % 10));
+      properties.put("service.ranking", i % 7);
+      IBenchService service = (i / 10) % 2 == 0? new MarkedService() : new PlainService();
+      registry.registerService(bundles[i % bundles.length], IBenchService.class, service, properties);
+    }
+    supplier = new OSGiNamedObjectSupplier(registry);
+    registry.setProperty("cl.annotation.index.properties", "component.name,group");
+    indexedSupplier = new OSGiNamedObjectSupplier(registry);
+
+    byName = descriptor("byName");
+    byNameFilter = descriptor("byNameFilter");
+    byFilter = descriptor("byFilter");
+    byProperty = descriptor("byProperty");
+    byBundle = descriptor("byBundle");
+    byAnnotationAndType = descriptor("byAnnotationAndType");
+    collection = descriptor("collection");
+  }
+
+  @Benchmark
+  public Object name()
+  {
+    return supplier.get(byName, null, false, false);
+  }
+
+  @Benchmark
+  public Object nameGeneric()
+  {
+    return supplier.get(byNameFilter, null, false, false);
+  }
+
+  @Benchmark
+  public Object filter()
+  {
+    return supplier.get(byFilter, null, false, false);
+  }
+
+  @Benchmark
+  public Object property()
+  {
+    return supplier.get(byProperty, null, false, false);
+  }
+
+  @Benchmark
+  public Object bundleNameAndVersionRange()
+  {
+    return supplier.get(byBundle, null, false, false);
+  }
+
+  @Benchmark
+  public Object annotationAndType()
+  {
+    return supplier.get(byAnnotationAndType, null, false, false);
+  }
+
+  @Benchmark
+  public Object collection()
+  {
+    return supplier.get(collection, null, false, false);
+  }
+
+  @Benchmark
+  public Object filterReinjected()
+  {
+    return supplier.get(byFilter, requestor, true, false);
+  }
+
+  @Benchmark
+  public Object collectionReinjected()
+  {
+    return supplier.get(collection, requestor, true, false);
+  }
+
+  @Benchmark
+  public Object nameIndexed()
+  {
+    return indexedSupplier.get(byName, null, false, false);
+  }
+
+  @Benchmark
+  public Object propertyIndexed()
+  {
+    return indexedSupplier.get(byProperty, null, false, false);
+  }
+
+  @Benchmark
+  public Object collectionIndexed()
+  {
+    return indexedSupplier.get(collection, null, false, false);
+  }
+
+  static IObjectDescriptor descriptor(String injectionPoint) throws NoSuchFieldException
+  {
+    Field field = InjectionPoints.class.getDeclaredField(injectionPoint);
+    return new FieldDescriptor(field.getGenericType(), field.getAnnotations());
+  }
+
+  /**
+   * The class <b>BenchmarkRequestor</b> allows to track the injection points like an injected object does.<br>
+   */
+  static final class BenchmarkRequestor implements IRequestor
+  {
+    @Override
+    public boolean uninject(Object object, PrimaryObjectSupplier objectSupplier)
+    {
+      return false;
+    }
+
+    @Override
+    public void resolveArguments(boolean initial)
+    {
+    }
+
+    @Override
+    public boolean isValid()
+    {
+      return true;
+    }
+
+    @Override
+    public Class<?> getRequestingObjectClass()
+    {
+      return null;
+    }
+
+    @Override
+    public Object getRequestingObject()
+    {
+      return null;
+    }
+
+    @Override
+    public Object execute()
+    {
+      return null;
+    }
+
+    @Override
+    public void disposed(PrimaryObjectSupplier objectSupplier)
+    {
+    }
+  }
+
+  /**
+   * The class <b>FieldDescriptor</b> allows to describe an injected field like the e4 injector does.<br>
+   */
+  static final class FieldDescriptor implements IObjectDescriptor
+  {
+    private final Type desiredType;
+    private final Annotation[] qualifiers;
+
+    FieldDescriptor(Type desiredType, Annotation[] qualifiers)
+    {
+      this.desiredType = desiredType;
+      this.qualifiers = qualifiers;
+    }
+
+    @Override
+    public Type getDesiredType()
+    {
+      return desiredType;
+    }
+
+    @Override
+    public boolean hasQualifier(Class<? extends Annotation> clazz)
+    {
+      return getQualifier(clazz) != null;
+    }
+
+    @Override
+    public <T extends Annotation> T getQualifier(Class<T> clazz)
+    {
+      for(Annotation qualifier : qualifiers)
+      {
+        if (clazz.isInstance(qualifier))
+          return clazz.cast(qualifier);
+      }
+      return null;
+    }
+
+    @Override
+    public Annotation[] getQualifiers()
+    {
+      return qualifiers.clone();
+    }
+  }
+}
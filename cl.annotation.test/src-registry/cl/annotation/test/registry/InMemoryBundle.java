@@ -0,0 +1,219 @@
+package cl.annotation.test.registry;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+
+/**
+ * The class <b>InMemoryBundle</b> allows to give the identity of a bundle registering services in an {@link InMemoryServiceRegistry}.<br>
+ * The bundle is always active, it has no content and its life cycle cannot be changed.
+ */
+final class InMemoryBundle implements Bundle
+{
+  private final long bundleId;
+  private final String symbolicName;
+  private final Version version;
+
+  InMemoryBundle(long bundleId, String symbolicName, Version version)
+  {
+    this.bundleId = bundleId;
+    this.symbolicName = symbolicName;
+    this.version = version;
+  }
+
+  @Override
+  public int compareTo(Bundle bundle)
+  {
+    return Long.compare(bundleId, bundle.getBundleId());
+  }
+
+  @Override
+  public int getState()
+  {
+    return ACTIVE;
+  }
+
+  @Override
+  public void start(int options)
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void start()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void stop(int options)
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void stop()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void update(InputStream input)
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void update()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void uninstall()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Dictionary<String, String> getHeaders()
+  {
+    Hashtable<String, String> headers = new Hashtable<>();
+    headers.put(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+    headers.put(Constants.BUNDLE_VERSION, version.toString());
+    return headers;
+  }
+
+  @Override
+  public Dictionary<String, String> getHeaders(String locale)
+  {
+    return getHeaders();
+  }
+
+  @Override
+  public long getBundleId()
+  {
+    return bundleId;
+  }
+
+  @Override
+  public String getLocation()
+  {
+    return "memory:" + symbolicName + "_" + version;
+  }
+
+  @Override
+  public ServiceReference<?>[] getRegisteredServices()
+  {
+    return null;
+  }
+
+  @Override
+  public ServiceReference<?>[] getServicesInUse()
+  {
+    return null;
+  }
+
+  @Override
+  public boolean hasPermission(Object permission)
+  {
+    return true;
+  }
+
+  @Override
+  public URL getResource(String name)
+  {
+    return null;
+  }
+
+  @Override
+  public String getSymbolicName()
+  {
+    return symbolicName;
+  }
+
+  @Override
+  public Class<?> loadClass(String name) throws ClassNotFoundException
+  {
+    return Class.forName(name, false, InMemoryBundle.class.getClassLoader());
+  }
+
+  @Override
+  public Enumeration<URL> getResources(String name)
+  {
+    return null;
+  }
+
+  @Override
+  public Enumeration<String> getEntryPaths(String path)
+  {
+    return null;
+  }
+
+  @Override
+  public URL getEntry(String path)
+  {
+    return null;
+  }
+
+  @Override
+  public long getLastModified()
+  {
+    return 0;
+  }
+
+  @Override
+  public Enumeration<URL> findEntries(String path, String filePattern, boolean recurse)
+  {
+    return null;
+  }
+
+  @Override
+  public BundleContext getBundleContext()
+  {
+    return null;
+  }
+
+  @Override
+  public Map<X509Certificate, List<X509Certificate>> getSignerCertificates(int signersType)
+  {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public Version getVersion()
+  {
+    return version;
+  }
+
+  @Override
+  public <A> A adapt(Class<A> type)
+  {
+    return null;
+  }
+
+  @Override
+  public File getDataFile(String filename)
+  {
+    return null;
+  }
+
+  @Override
+  public String toString()
+  {
+    return symbolicName + "_" + version + " [" + bundleId + "]";
+  }
+}
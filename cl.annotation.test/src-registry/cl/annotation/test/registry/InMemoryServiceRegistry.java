@@ -0,0 +1,370 @@
+package cl.annotation.test.registry;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.Version;
+
+import cl.annotation.internal.ServiceRegistry;
+
+/**
+ * The class <b>InMemoryServiceRegistry</b> allows to resolve {@link cl.annotation.OSGiNamed} injection points without OSGi framework.<br>
+ * The services are registered by in-memory bundles with their properties and ranking, and the service events are
+ * dispatched synchronously to the listeners. The registry keeps the use count of each service.
+ * The keys of the service properties are case-insensitive, like in an OSGi framework.
+ *
+ * <pre>
+ * InMemoryServiceRegistry registry = new InMemoryServiceRegistry();
+ * Bundle bundle = registry.installBundle("my.bundle", "1.0.0");
+ * registry.registerService(bundle, ITodoService.class, new TodoService(), properties);
+ * OSGiNamedObjectSupplier supplier = new OSGiNamedObjectSupplier(registry);
+ * </pre>
+ */
+public final class InMemoryServiceRegistry implements ServiceRegistry
+{
+  private final Map<String, Set<Registration>> registrationsByObjectClass = new ConcurrentHashMap<>();
+  private final CopyOnWriteArrayList<ServiceListener> listeners = new CopyOnWriteArrayList<>();
+  private final CopyOnWriteArrayList<Bundle> bundles = new CopyOnWriteArrayList<>();
+  private final CopyOnWriteArrayList<BundleListener> bundleListeners = new CopyOnWriteArrayList<>();
+  private final Map<String, String> properties = new ConcurrentHashMap<>();
+  private final AtomicLong nextBundleId = new AtomicLong(1);
+  private final AtomicLong nextServiceId = new AtomicLong(1);
+
+  /**
+   * Install a bundle
+   * @param symbolicName the symbolic name of the bundle
+   * @param version the version of the bundle
+   */
+  public Bundle installBundle(String symbolicName, String version)
+  {
+    Bundle bundle = new InMemoryBundle(nextBundleId.getAndIncrement(), symbolicName, Version.parseVersion(version));
+    bundles.add(bundle);
+    BundleEvent event = new BundleEvent(BundleEvent.INSTALLED, bundle);
+    for(BundleListener listener : bundleListeners)
+      listener.bundleChanged(event);
+    return bundle;
+  }
+
+  /**
+   * Register a service
+   * @param bundle the registering bundle (returned by {@link #installBundle(String, String)})
+   * @param clazz the interface of the service
+   * @param service the service object
+   * @param serviceProperties the service properties or <code>null</code>
+   */
+  public <S> ServiceRegistration<S> registerService(Bundle bundle, Class<S> clazz, S service, Map<String, ?> serviceProperties)
+  {
+    @SuppressWarnings("unchecked")
+    ServiceRegistration<S> registration = (ServiceRegistration<S>) registerService(bundle, new String[]{clazz.getName()}, service, serviceProperties);
+    return registration;
+  }
+
+  /**
+   * Register a service
+   * @param bundle the registering bundle (returned by {@link #installBundle(String, String)})
+   * @param objectClasses the interface names of the service
+   * @param service the service object
+   * @param serviceProperties the service properties or <code>null</code>
+   */
+  public ServiceRegistration<?> registerService(Bundle bundle, String[] objectClasses, Object service, Map<String, ?> serviceProperties)
+  {
+    Registration registration = new Registration(bundle, objectClasses.clone(), service, nextServiceId.getAndIncrement());
+    registration.properties = registration.createProperties(serviceProperties);
+    for(String objectClass : objectClasses)
+      registrationsByObjectClass.computeIfAbsent(objectClass, oc -> ConcurrentHashMap.newKeySet()).add(registration);
+    fireServiceEvent(ServiceEvent.REGISTERED, registration);
+    return registration;
+  }
+
+  /**
+   * Set a framework property
+   */
+  public void setProperty(String key, String value)
+  {
+    if (value == null)
+      properties.remove(key);
+    else
+      properties.put(key, value);
+  }
+
+  /**
+   * Return the number of {@link #getService(ServiceReference)} not balanced by {@link #ungetService(ServiceReference)}
+   */
+  public int getUseCount(ServiceReference<?> ref)
+  {
+    return ((Registration) ref).useCount.get();
+  }
+
+  @Override
+  public ServiceReference<?>[] getServiceReferences(String objectClass, String filter) throws InvalidSyntaxException
+  {
+    Set<Registration> registrations = registrationsByObjectClass.get(objectClass);
+    if (registrations == null || registrations.isEmpty())
+      return null;
+
+    Filter serviceFilter = filter == null? null : FrameworkUtil.createFilter(filter);
+    List<ServiceReference<?>> refs = new ArrayList<>(registrations.size());
+    for(Registration registration : registrations)
+    {
+      if (serviceFilter == null || serviceFilter.match(registration))
+        refs.add(registration);
+    }
+    return refs.isEmpty()? null : refs.toArray(new ServiceReference<?>[refs.size()]);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <S> S getService(ServiceReference<S> ref)
+  {
+    Registration registration = (Registration) ref;
+    if (registration.unregistered)
+      return null;
+    registration.useCount.incrementAndGet();
+    return (S) registration.service;
+  }
+
+  @Override
+  public boolean ungetService(ServiceReference<?> ref)
+  {
+    AtomicInteger useCount = ((Registration) ref).useCount;
+    while(true)
+    {
+      int count = useCount.get();
+      if (count == 0)
+        return false;
+      if (useCount.compareAndSet(count, count - 1))
+        return true;
+    }
+  }
+
+  @Override
+  public void addServiceListener(ServiceListener listener)
+  {
+    listeners.addIfAbsent(listener);
+  }
+
+  @Override
+  public void removeServiceListener(ServiceListener listener)
+  {
+    listeners.remove(listener);
+  }
+
+  @Override
+  public Bundle[] getBundles()
+  {
+    return bundles.toArray(new Bundle[0]);
+  }
+
+  @Override
+  public void addBundleListener(BundleListener listener)
+  {
+    bundleListeners.addIfAbsent(listener);
+  }
+
+  @Override
+  public void removeBundleListener(BundleListener listener)
+  {
+    bundleListeners.remove(listener);
+  }
+
+  @Override
+  public String getProperty(String key)
+  {
+    return properties.get(key);
+  }
+
+  /**
+   * The implementation class is the class of the service object, like a declarative service known before its activation
+   */
+  @Override
+  public Class<?> findImplementationClass(ServiceReference<?> ref)
+  {
+    return ((Registration) ref).service.getClass();
+  }
+
+  /**
+   * Find the entries in the class path, the in-memory bundles have no content
+   */
+  @Override
+  public Collection<URL> findEntries(String path)
+  {
+    try
+    {
+      return Collections.list(InMemoryServiceRegistry.class.getClassLoader().getResources(path));
+    }
+    catch(IOException e)
+    {
+      return Collections.emptyList();
+    }
+  }
+
+  private void fireServiceEvent(int type, Registration registration)
+  {
+    ServiceEvent event = new ServiceEvent(type, registration);
+    for(ServiceListener listener : listeners)
+      listener.serviceChanged(event);
+  }
+
+  /**
+   * The class <b>Registration</b> allows to keep one registered service, it is also its {@link ServiceReference}.<br>
+   */
+  private final class Registration implements ServiceRegistration<Object>, ServiceReference<Object>
+  {
+    private final Bundle bundle;
+    private final String[] objectClasses;
+    private final Object service;
+    private final Long serviceId;
+    private final AtomicInteger useCount = new AtomicInteger();
+    private volatile Map<String, Object> properties;
+    private volatile boolean unregistered;
+
+    Registration(Bundle bundle, String[] objectClasses, Object service, long serviceId)
+    {
+      this.bundle = bundle;
+      this.objectClasses = objectClasses;
+      this.service = service;
+      this.serviceId = serviceId;
+    }
+
+    Map<String, Object> createProperties(Map<String, ?> serviceProperties)
+    {
+      // the map is not modified once created
+      Map<String, Object> newProperties = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      if (serviceProperties != null)
+      {
+        for(Map.Entry<String, ?> entry : serviceProperties.entrySet())
+        {
+          if (newProperties.put(entry.getKey(), entry.getValue()) != null)
+            throw new IllegalArgumentException("Property keys differing only in case: " + entry.getKey());
+        }
+      }
+      newProperties.put(Constants.OBJECTCLASS, objectClasses);
+      newProperties.put(Constants.SERVICE_ID, serviceId);
+      newProperties.put(Constants.SERVICE_BUNDLEID, bundle.getBundleId());
+      return newProperties;
+    }
+
+    @Override
+    public ServiceReference<Object> getReference()
+    {
+      return this;
+    }
+
+    @Override
+    public void setProperties(Dictionary<String, ?> serviceProperties)
+    {
+      if (unregistered)
+        throw new IllegalStateException("Service already unregistered");
+      Map<String, Object> map = new Hashtable<>();
+      for(Enumeration<String> keys = serviceProperties.keys(); keys.hasMoreElements();)
+      {
+        String key = keys.nextElement();
+        map.put(key, serviceProperties.get(key));
+      }
+      properties = createProperties(map);
+      fireServiceEvent(ServiceEvent.MODIFIED, this);
+    }
+
+    @Override
+    public void unregister()
+    {
+      if (unregistered)
+        throw new IllegalStateException("Service already unregistered");
+      fireServiceEvent(ServiceEvent.UNREGISTERING, this);
+      unregistered = true;
+      for(String objectClass : objectClasses)
+      {
+        Set<Registration> registrations = registrationsByObjectClass.get(objectClass);
+        if (registrations != null)
+          registrations.remove(this);
+      }
+    }
+
+    @Override
+    public Object getProperty(String key)
+    {
+      return properties.get(key);
+    }
+
+    @Override
+    public String[] getPropertyKeys()
+    {
+      Map<String, Object> currentProperties = properties;
+      return currentProperties.keySet().toArray(new String[currentProperties.size()]);
+    }
+
+    @Override
+    public Dictionary<String, Object> getProperties()
+    {
+      return new Hashtable<>(properties);
+    }
+
+    @Override
+    public Bundle getBundle()
+    {
+      return unregistered? null : bundle;
+    }
+
+    @Override
+    public Bundle[] getUsingBundles()
+    {
+      return null;
+    }
+
+    @Override
+    public boolean isAssignableTo(Bundle otherBundle, String className)
+    {
+      return true;
+    }
+
+    @Override
+    public int compareTo(Object reference)
+    {
+      // the reference with the highest ranking, then the lowest service.id, is the greatest
+      ServiceReference<?> other = (ServiceReference<?>) reference;
+      int ranking = getRanking(this);
+      int otherRanking = getRanking(other);
+      if (ranking != otherRanking)
+        return ranking < otherRanking? -1 : 1;
+      long otherServiceId = (Long) other.getProperty(Constants.SERVICE_ID);
+      return serviceId == otherServiceId? 0 : serviceId > otherServiceId? -1 : 1;
+    }
+
+    private int getRanking(ServiceReference<?> ref)
+    {
+      Object ranking = ref.getProperty(Constants.SERVICE_RANKING);
+      return ranking instanceof Integer? (Integer) ranking : 0;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "{" + String.join(", ", objectClasses) + "}=" + properties;
+    }
+  }
+}
@@ -0,0 +1,736 @@
+package cl.annotation.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import javax.inject.Qualifier;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.eclipse.e4.core.di.IInjector;
+import org.eclipse.e4.core.di.InjectionException;
+import org.eclipse.e4.core.di.suppliers.IObjectDescriptor;
+import org.eclipse.e4.core.di.suppliers.IRequestor;
+import org.eclipse.e4.core.di.suppliers.PrimaryObjectSupplier;
+import org.eclipse.e4.core.internal.di.ObjectDescriptor;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+import cl.annotation.OSGiNamed;
+import cl.annotation.OSGiNamedMetrics.InjectionPointMetrics;
+import cl.annotation.OSGiNamedNotifications;
+import cl.annotation.internal.OSGiNamedObjectSupplier;
+import cl.annotation.internal.OSGiNamedProcessor;
+import cl.annotation.test.OSGiNamed_TestCase.OSGiNamedBuilder;
+import cl.annotation.test.OSGiNamed_TestCase.OSGiNamedImpl;
+import cl.annotation.test.registry.InMemoryServiceRegistry;
+
+/**
+ * The class <b>OSGiNamedHeadless_TestCase</b> allows to test the resolution with an {@link InMemoryServiceRegistry}.<br>
+ * These tests do not need an OSGi framework.
+ */
+@SuppressWarnings({"restriction", "static-method"})
+public class OSGiNamedHeadless_TestCase
+{
+  /** location of the index written by {@link OSGiNamedProcessor} */
+  static final String INDEX = "META-INF/cl.annotation/OSGiNamed.index";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  InMemoryServiceRegistry registry;
+  OSGiNamedObjectSupplier supplier;
+  Bundle bundle1;
+  Bundle bundle2;
+
+  @Before
+  public void setUp()
+  {
+    registry = new InMemoryServiceRegistry();
+    supplier = new OSGiNamedObjectSupplier(registry);
+    bundle1 = registry.installBundle("headless.bundle1", "1.0.0");
+    bundle2 = registry.installBundle("headless.bundle2", "2.1.0");
+  }
+
+  @Test
+  public void testHighestRanking()
+  {
+    Service service1 = new Service();
+    Service service2 = new Service();
+    registry.registerService(bundle1, IService.class, service1, properties("Service1", 1));
+    registry.registerService(bundle2, IService.class, service2, properties("Service2", 2));
+
+    assertSame(service2, supplier.get(descriptor(IService.class, new OSGiNamedBuilder().build()), null, false, false));
+    assertSame(service1, supplier.get(descriptor(IService.class, new OSGiNamedBuilder().withName("Service1").build()), null, false, false));
+  }
+
+  @Test
+  public void testPropertyKeyCase()
+  {
+    Service service1 = new Service();
+    Map<String, Object> properties1 = properties("Service1", 1);
+    properties1.put("Color", "blue");
+    registry.registerService(bundle1, IService.class, service1, properties1);
+
+    // the property keys are case-insensitive like in an OSGi framework
+    assertSame(service1, supplier.get(descriptor(IService.class, new OSGiNamedBuilder().withFilter("(color=blue)").build()), null, false, false));
+  }
+
+  @Test(expected = InjectionException.class)
+  public void testMultiple()
+  {
+    registry.registerService(bundle1, IService.class, new Service(), properties("Service1", 1));
+    registry.registerService(bundle2, IService.class, new Service(), properties("Service2", 2));
+
+    supplier.get(descriptor(IService.class, new OSGiNamedBuilder().withTakeHighestRankingIfMultiple(false).build()), null, false, false);
+  }
+
+  @Test
+  public void testBundleNameAndVersion()
+  {
+    Service service1 = new Service();
+    Service service2 = new Service();
+    registry.registerService(bundle1, IService.class, service1, properties("Service1", 2));
+    registry.registerService(bundle2, IService.class, service2, properties("Service2", 1));
+
+    IObjectDescriptor descriptor = descriptor(IService.class, new OSGiNamedBuilder().withBundleName("headless.*").withBundleVersion("[2.0,3.0)").build());
+    assertSame(service2, supplier.get(descriptor, null, false, false));
+  }
+
+  @Test
+  public void testBundleNameAndVersion_installed()
+  {
+    Service service1 = new Service();
+    registry.registerService(bundle1, IService.class, service1, properties("Service1", 1));
+    IObjectDescriptor descriptor = descriptor(IService.class, new OSGiNamedBuilder().withBundleName("headless.*").withBundleVersion("[1.0,3.0)").build());
+    assertSame(service1, supplier.get(descriptor, null, false, false));
+
+    // the bundle index is updated when a bundle is installed
+    Service service3 = new Service();
+    Bundle bundle3 = registry.installBundle("headless.bundle3", "2.5.0");
+    registry.registerService(bundle3, IService.class, service3, properties("Service3", 3));
+    registry.registerService(registry.installBundle("headless.bundle4", "3.0.0"), IService.class, new Service(), properties("Service4", 4));
+    registry.registerService(registry.installBundle("other.bundle", "2.0.0"), IService.class, new Service(), properties("Service5", 5));
+    assertSame(service3, supplier.get(descriptor, null, false, false));
+  }
+
+  @Test
+  public void testCollection_tracking()
+  {
+    Service service1 = new Service();
+    registry.registerService(bundle1, IService.class, service1, properties("Service1", 1));
+
+    IObjectDescriptor descriptor = descriptor(collectionType(), new OSGiNamedBuilder().build());
+    CountingRequestor requestor = new CountingRequestor();
+    assertEquals(1, ((Collection<?>) supplier.get(descriptor, requestor, true, false)).size());
+
+    // the events are dispatched synchronously
+    ServiceRegistration<IService> registration2 = registry.registerService(bundle2, IService.class, new Service(), properties("Service2", 2));
+    assertEquals(1, requestor.resolveCount);
+    assertEquals(2, ((Collection<?>) supplier.get(descriptor, requestor, true, false)).size());
+
+    registration2.unregister();
+    assertEquals(2, requestor.resolveCount);
+    assertEquals(1, ((Collection<?>) supplier.get(descriptor, requestor, true, false)).size());
+  }
+
+  @Test
+  public void testCollection_trackingTwoPlans()
+  {
+    Map<String, Object> properties1 = properties("Service1", 1);
+    properties1.put("p", "a");
+    registry.registerService(bundle1, IService.class, new Service(), properties1);
+
+    IObjectDescriptor all = descriptor(collectionType(), new OSGiNamedBuilder().build());
+    IObjectDescriptor onlyA = descriptor(collectionType(), new OSGiNamedBuilder().withFilter("(p=a)").build());
+    CountingRequestor requestor = new CountingRequestor();
+    assertEquals(1, ((Collection<?>) supplier.get(all, requestor, true, false)).size());
+    assertEquals(1, ((Collection<?>) supplier.get(onlyA, requestor, true, false)).size());
+
+    // both maintained results are updated by the event, even if the first one already notifies the requestor
+    Map<String, Object> properties2 = properties("Service2", 2);
+    properties2.put("p", "a");
+    ServiceRegistration<IService> registration2 = registry.registerService(bundle2, IService.class, new Service(), properties2);
+    assertEquals(1, requestor.resolveCount);
+    assertEquals(2, ((Collection<?>) supplier.get(all, requestor, true, false)).size());
+    assertEquals(2, ((Collection<?>) supplier.get(onlyA, requestor, true, false)).size());
+
+    registration2.unregister();
+    assertEquals(2, requestor.resolveCount);
+    assertEquals(1, ((Collection<?>) supplier.get(all, requestor, true, false)).size());
+    assertEquals(1, ((Collection<?>) supplier.get(onlyA, requestor, true, false)).size());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testCollection_trackingPredicate()
+  {
+    registry.registerService(bundle1, IService.class, new Service(), properties("Service1", 1));
+    registry.registerService(bundle2, IService.class, new Service(), properties("Service2", 2));
+
+    OSGiNamed osgiNamed = new OSGiNamedImpl(new String[0], new String[0], "", new Class[0], new Class[0], new Class<?>[0], new Class<?>[0], true, new String[0], new String[0])
+    {
+      @Override
+      public Class<? extends Predicate<ServiceReference<?>>> serviceReferencePredicate()
+      {
+        return Service1Predicate.class;
+      }
+    };
+    IObjectDescriptor descriptor = descriptor(collectionType(), osgiNamed);
+    CountingRequestor requestor = new CountingRequestor();
+    try
+    {
+      assertEquals(2, ((Collection<?>) supplier.get(descriptor, requestor, true, false)).size());
+
+      // the predicate changes its answer without service event, so its result is not maintained
+      Service1Predicate.acceptAll = false;
+      assertEquals(1, ((Collection<?>) supplier.get(descriptor, requestor, true, false)).size());
+    }
+    finally
+    {
+      Service1Predicate.acceptAll = true;
+    }
+  }
+
+  @Test
+  public void testNotificationExecutor()
+  {
+    AtomicInteger executions = new AtomicInteger();
+    Executor executor = runnable -> {
+      executions.incrementAndGet();
+      runnable.run();
+    };
+    Map<String, Object> executorProperties = new HashMap<>();
+    executorProperties.put(OSGiNamedNotifications.EXECUTOR_PROPERTY, "true");
+    ServiceRegistration<Executor> executorRegistration = registry.registerService(bundle1, Executor.class, executor, executorProperties);
+    registry.setProperty("cl.annotation.notification.async", "true");
+    OSGiNamedObjectSupplier asyncSupplier = new OSGiNamedObjectSupplier(registry);
+
+    CountingRequestor requestor = new CountingRequestor();
+    asyncSupplier.get(descriptor(collectionType(), new OSGiNamedBuilder().build()), requestor, true, false);
+    for(int i = 0; i < 3; i++)
+      registry.registerService(bundle2, IService.class, new Service(), properties("Service" + i, i));
+    assertEquals(3, executions.get());
+    assertEquals(3, requestor.resolveCount);
+
+    // the executor is acquired once and kept while it is registered
+    assertEquals(1, registry.getUseCount(executorRegistration.getReference()));
+    executorRegistration.unregister();
+    assertEquals(0, registry.getUseCount(executorRegistration.getReference()));
+  }
+
+  @Test
+  public void testQueryDuringUnregistering()
+  {
+    Service service2 = new Service();
+    ServiceRegistration<IService> registration1 = registry.registerService(bundle1, IService.class, new Service(), properties("Service", 5));
+    registry.registerService(bundle2, IService.class, service2, properties("Service", 1));
+
+    // the listener of the supplier is registered before the one of the test
+    IObjectDescriptor highest = descriptor(IService.class, new OSGiNamedBuilder().build());
+    IObjectDescriptor byName = descriptor(IService.class, new OSGiNamedBuilder().withName("Service").build());
+    assertNull(supplier.get(descriptor(Runnable.class, new OSGiNamedBuilder().build(), new OptionalImpl()), null, false, false));
+
+    // the first queries are done while the unregistering service is still given by the registry
+    registry.addServiceListener(event -> {
+      if (event.getType() == ServiceEvent.UNREGISTERING)
+      {
+        supplier.get(highest, null, false, false);
+        supplier.get(byName, null, false, false);
+      }
+    });
+    registration1.unregister();
+
+    assertSame(service2, supplier.get(highest, null, false, false));
+    assertSame(service2, supplier.get(byName, null, false, false));
+  }
+
+  @Test
+  public void testPlanEviction()
+  {
+    registry.registerService(bundle1, IService.class, new Service(), properties("Service1", 1));
+    Annotation[] trackedOSGiNameds = new Annotation[1000];
+    CountingRequestor requestor = new CountingRequestor();
+    for(int i = 0; i < trackedOSGiNameds.length; i++)
+    {
+      trackedOSGiNameds[i] = new OSGiNamedBuilder().withFilter("(component.name=Service" + i + ")").build();
+      supplier.get(descriptor(IService.class, trackedOSGiNameds[i], new OptionalImpl()), requestor, true, false);
+    }
+
+    // more plans than the cache can keep: the tracked plans are pinned
+    for(int i = 0; i < 5000; i++)
+      supplier.get(descriptor(IService.class, new OSGiNamedBuilder().withName("Other" + i).build(), new OptionalImpl()), null, false, false);
+    for(Annotation osgiNamed : trackedOSGiNameds)
+      assertEquals(1, getMetrics(supplier, IService.class, osgiNamed).getResolutionCount());
+
+    // the requestor is untracked from the same plans
+    for(Annotation osgiNamed : trackedOSGiNameds)
+      supplier.get(descriptor(IService.class, osgiNamed, new OptionalImpl()), requestor, false, false);
+    registry.registerService(bundle2, IService.class, new Service(), properties("Service1", 2));
+    assertEquals(0, requestor.resolveCount);
+  }
+
+  @Test
+  public void testQuietWindow_maximumDelay() throws InterruptedException
+  {
+    registry.setProperty(OSGiNamedNotifications.QUIET_WINDOW_PROPERTY, "200");
+    registry.setProperty(OSGiNamedNotifications.MAXIMUM_DELAY_PROPERTY, "500");
+    OSGiNamedObjectSupplier quietSupplier = new OSGiNamedObjectSupplier(registry);
+    CountingRequestor requestor = new CountingRequestor();
+    quietSupplier.get(descriptor(collectionType(), new OSGiNamedBuilder().build()), requestor, true, false);
+
+    // the events never leave a quiet window, the requestor is notified after the maximum delay
+    for(int i = 0; i < 30; i++)
+    {
+      registry.registerService(bundle1, IService.class, new Service(), properties("Service" + i, i));
+      Thread.sleep(50);
+    }
+    assertTrue(requestor.resolveCount >= 1);
+  }
+
+  @Test
+  public void testUseCount()
+  {
+    ServiceRegistration<IService> registration = registry.registerService(bundle1, IService.class, new Service(), properties("Service1", 1));
+
+    IObjectDescriptor descriptor = descriptor(IService.class, new OSGiNamedBuilder().build());
+    CountingRequestor requestor = new CountingRequestor();
+    for(int i = 0; i < 100_000; i++)
+      supplier.get(descriptor, requestor, true, false);
+    assertEquals(1, registry.getUseCount(registration.getReference()));
+
+    // the invalid requestor releases its service on the next notification
+    requestor.valid = false;
+    registry.registerService(bundle2, IService.class, new Service(), properties("Service2", 2));
+    assertEquals(0, registry.getUseCount(registration.getReference()));
+  }
+
+  @Test
+  public void testLargeRegistry()
+  {
+    for(int i = 0; i < 100_000; i++)
+      registry.registerService(i % 2 == 0? bundle1 : bundle2, IService.class, new Service(), properties("Service" + i, i % 10));
+
+    Object service = supplier.get(descriptor(IService.class, new OSGiNamedBuilder().withName("Service99999").build()), null, false, false);
+    assertTrue(Service.class.isInstance(service));
+    assertNull(supplier.get(descriptor(IService.class, new OSGiNamedBuilder().withName("fake").build(), new OptionalImpl()), null, false, false));
+  }
+
+  @Test
+  public void testPropertyIndex()
+  {
+    registry.setProperty("cl.annotation.index.properties", "component.name, key");
+    OSGiNamedObjectSupplier indexedSupplier = new OSGiNamedObjectSupplier(registry);
+    for(int i = 0; i < 1000; i++)
+    {
+      Map<String, Object> properties = properties("Service" + i, i % 7);
+      properties.put("key", "v" + i % 10);
+      registry.registerService(i % 2 == 0? bundle1 : bundle2, IService.class, new Service(), properties);
+    }
+    Map<String, Object> typedProperties = properties("Typed", 3);
+    typedProperties.put("key", 5);
+    ServiceRegistration<IService> typed = registry.registerService(bundle1, IService.class, new Service(), typedProperties);
+
+    Annotation[] osgiNameds = {new OSGiNamedBuilder().withName("Service500").build(),
+      new OSGiNamedBuilder().withNames(new String[]{"Service3", "Service4", "Typed"}).build(),
+      new OSGiNamedBuilder().withProperty(new String[]{"key=v3"}).build(),
+      new OSGiNamedBuilder().withProperty(new String[]{"key=5"}).build(),
+      new OSGiNamedBuilder().withName("Service13").withProperty(new String[]{"key=v3", "service.ranking=6"}).build(),
+      new OSGiNamedBuilder().withProperty(new String[]{"key=v*"}).withFilter("(service.ranking>=5)").build(),
+      new OSGiNamedBuilder().withName("Service\\2").build()};
+    for(Annotation osgiNamed : osgiNameds)
+    {
+      assertSame(osgiNamed.toString(), supplier.get(descriptor(IService.class, osgiNamed, new OptionalImpl()), null, false, false),
+        indexedSupplier.get(descriptor(IService.class, osgiNamed, new OptionalImpl()), null, false, false));
+      assertEquals(osgiNamed.toString(), supplier.get(descriptor(collectionType(), osgiNamed), null, false, false),
+        indexedSupplier.get(descriptor(collectionType(), osgiNamed), null, false, false));
+    }
+
+    // the name is answered by the index, only one reference is scanned
+    assertEquals(1, getMetrics(indexedSupplier, IService.class, osgiNameds[0]).getScannedReferenceCount());
+
+    // the index is updated from the service events
+    typedProperties.put("key", "v3");
+    typedProperties.put("service.ranking", 10);
+    typed.setProperties(new Hashtable<>(typedProperties));
+    Object service = indexedSupplier.get(descriptor(IService.class, osgiNameds[2]), null, false, false);
+    assertSame(supplier.get(descriptor(IService.class, osgiNameds[2]), null, false, false), service);
+    typed.unregister();
+    assertNull(indexedSupplier.get(descriptor(IService.class, osgiNameds[3], new OptionalImpl()), null, false, false));
+    assertEquals(supplier.get(descriptor(collectionType(), osgiNameds[2]), null, false, false),
+      indexedSupplier.get(descriptor(collectionType(), osgiNameds[2]), null, false, false));
+  }
+
+  @Test
+  public void testOptionalMiss()
+  {
+    ServiceRegistration<IService> registration = registry.registerService(bundle1, IService.class, new Service(), properties("Other", 1));
+    // a filter is given so the plan is not resolved by the component name index
+    Annotation osgiNamed = new OSGiNamedBuilder().withFilter("(component.name=Missing)").build();
+    IObjectDescriptor descriptor = descriptor(IService.class, osgiNamed, new OptionalImpl());
+
+    // the miss is cached, the next resolutions do not scan the registry
+    for(int i = 0; i < 3; i++)
+      assertNull(supplier.get(descriptor, null, false, false));
+    InjectionPointMetrics metrics = getMetrics(supplier, IService.class, osgiNamed);
+    assertEquals(3, metrics.getResolutionCount());
+    assertEquals(1, metrics.getScannedReferenceCount());
+
+    // a service that can not match keeps the miss
+    registry.registerService(bundle2, IService.class, new Service(), properties("Other2", 2));
+    assertNull(supplier.get(descriptor, null, false, false));
+    assertEquals(1, getMetrics(supplier, IService.class, osgiNamed).getScannedReferenceCount());
+
+    // a modified service that matches forgets the miss
+    Hashtable<String, Object> properties = new Hashtable<>(properties("Missing", 1));
+    registration.setProperties(properties);
+    assertTrue(Service.class.isInstance(supplier.get(descriptor, null, false, false)));
+
+    // after the unregistration, the first resolution queries the registry and caches the miss again
+    registration.unregister();
+    assertNull(supplier.get(descriptor, null, false, false));
+    assertNull(supplier.get(descriptor, null, false, false));
+    assertEquals(4, getMetrics(supplier, IService.class, osgiNamed).getScannedReferenceCount());
+  }
+
+  @Test
+  public void testComponentName()
+  {
+    Service service1 = new Service();
+    Service service2 = new Service();
+    ServiceRegistration<IService> registration1 = registry.registerService(bundle1, IService.class, service1, properties("Service1", 1));
+    registry.registerService(bundle2, IService.class, new Service(), properties("Other", 5));
+
+    Annotation osgiNamed = new OSGiNamedBuilder().withName("Service1").build();
+    IObjectDescriptor descriptor = descriptor(IService.class, osgiNamed, new OptionalImpl());
+    CountingRequestor requestor = new CountingRequestor();
+    for(int i = 0; i < 10; i++)
+      assertSame(service1, supplier.get(descriptor, requestor, true, false));
+    assertEquals(1, registry.getUseCount(registration1.getReference()));
+
+    // only the reference with the name is scanned, then the value is reused while no service changes
+    InjectionPointMetrics metrics = getMetrics(supplier, IService.class, osgiNamed);
+    assertEquals(10, metrics.getResolutionCount());
+    assertEquals(1, metrics.getScannedReferenceCount());
+
+    // the index is updated from the service events, the highest ranking service with the name is injected
+    ServiceRegistration<IService> registration2 = registry.registerService(bundle2, IService.class, service2, properties("Service1", 2));
+    assertEquals(1, requestor.resolveCount);
+    assertSame(service2, supplier.get(descriptor, requestor, true, false));
+    assertEquals(0, registry.getUseCount(registration1.getReference()));
+
+    registration2.setProperties(new Hashtable<>(properties("Service2", 2)));
+    assertEquals(2, requestor.resolveCount);
+    assertSame(service1, supplier.get(descriptor, requestor, true, false));
+
+    registration1.unregister();
+    assertEquals(3, requestor.resolveCount);
+    assertNull(supplier.get(descriptor, requestor, true, false));
+    assertSame(IInjector.NOT_A_VALUE, supplier.get(descriptor(IService.class, osgiNamed), null, false, false));
+
+    // the names matched as patterns by the filter are resolved by the generic path
+    assertSame(service2, supplier.get(descriptor(IService.class, new OSGiNamedBuilder().withName("Service*").build()), null, false, false));
+  }
+
+  @Test
+  public void testDeferred_withoutRequestor()
+  {
+    Service service1 = new Service();
+    ServiceRegistration<IService> registration1 = registry.registerService(bundle1, IService.class, service1, properties("Service1", 1));
+
+    // the deferred value releases the services of its previous call and keeps the ones of its last call
+    int useCount = 0;
+    for(Annotation osgiNamed : new Annotation[]{new OSGiNamedBuilder().build(), new OSGiNamedBuilder().withName("Service1").build()})
+    {
+      Supplier<?> deferred = (Supplier<?>) supplier.get(descriptor(supplierType(), osgiNamed), null, false, false);
+      for(int i = 0; i < 3; i++)
+        assertSame(service1, deferred.get());
+      assertEquals(useCount + 1, registry.getUseCount(registration1.getReference()));
+
+      ServiceRegistration<IService> registration2 = registry.registerService(bundle2, IService.class, new Service(), properties("Service1", 2));
+      deferred.get();
+      assertEquals(useCount, registry.getUseCount(registration1.getReference()));
+      registration2.unregister();
+      assertSame(service1, deferred.get());
+      assertEquals(0, registry.getUseCount(registration2.getReference()));
+      useCount++;
+    }
+  }
+
+  @Test
+  public void testGeneration()
+  {
+    Service service1 = new Service();
+    ServiceRegistration<IService> registration1 = registry.registerService(bundle1, IService.class, service1, properties("Service1", 1));
+    registry.registerService(bundle2, IService.class, new Service(), properties("Service2", 2));
+
+    Annotation osgiNamed = new OSGiNamedBuilder().withFilter("(component.name=Service1)").build();
+    IObjectDescriptor descriptor = descriptor(IService.class, osgiNamed);
+    CountingRequestor requestor = new CountingRequestor();
+    for(int i = 0; i < 10; i++)
+      assertSame(service1, supplier.get(descriptor, requestor, true, false));
+    assertEquals(2, getMetrics(supplier, IService.class, osgiNamed).getScannedReferenceCount());
+    assertEquals(1, registry.getUseCount(registration1.getReference()));
+
+    // a service of another type does not change the generation
+    registry.registerService(bundle2, Runnable.class, () -> {}, properties("Runnable", 1));
+    assertSame(service1, supplier.get(descriptor, requestor, true, false));
+    assertEquals(2, getMetrics(supplier, IService.class, osgiNamed).getScannedReferenceCount());
+
+    // a service of the same type changes the generation, the next resolution queries the registry
+    registry.registerService(bundle2, IService.class, new Service(), properties("Service3", 3));
+    assertSame(service1, supplier.get(descriptor, requestor, true, false));
+    assertSame(service1, supplier.get(descriptor, requestor, true, false));
+    assertEquals(5, getMetrics(supplier, IService.class, osgiNamed).getScannedReferenceCount());
+    assertEquals(1, registry.getUseCount(registration1.getReference()));
+
+    // without requestor, nothing is reused
+    supplier.get(descriptor, null, false, false);
+    assertEquals(8, getMetrics(supplier, IService.class, osgiNamed).getScannedReferenceCount());
+
+    // the unregistered service is not reused
+    registration1.unregister();
+    assertSame(IInjector.NOT_A_VALUE, supplier.get(descriptor, requestor, true, false));
+  }
+
+  @Test
+  public void testProcessor_errors() throws Exception
+  {
+    List<Diagnostic<? extends JavaFileObject>> errors = compile(temporaryFolder.getRoot(),
+      "@OSGiNamed(bundleName = {\"a\", \"b\"}, bundleVersionRange = {\"1.0.0\", \"2.0.0\", \"3.0.0\"}) Object service1;",
+      "@OSGiNamed(bundleVersionRange = \"[2.0.0\") Object service2;",
+      "@OSGiNamed(filter = \"(key=value\") Object service3;",
+      "@OSGiNamed(property = \"key\") Object service4;");
+    assertEquals(errors.toString(), 4, errors.size());
+    assertEquals(2, errors.get(0).getLineNumber());
+    assertTrue(errors.get(0).getMessage(null).contains("bundleNames have 2 entries but bundleVersionRanges have 3 entries"));
+    assertEquals(3, errors.get(1).getLineNumber());
+    assertEquals(4, errors.get(2).getLineNumber());
+    assertEquals(5, errors.get(3).getLineNumber());
+    assertFalse(new File(temporaryFolder.getRoot(), INDEX).exists());
+
+    // the injection points invalid on purpose are not checked
+    errors = compile(temporaryFolder.getRoot(), "@SuppressWarnings(\"OSGiNamed\") @OSGiNamed(bundleVersionRange = \"fake\") Object service1;");
+    assertEquals(errors.toString(), 0, errors.size());
+  }
+
+  @Test
+  public void testProcessor_index() throws Exception
+  {
+    List<Diagnostic<? extends JavaFileObject>> errors = compile(temporaryFolder.getRoot(),
+      "@OSGiNamed(name = \"TODO1\", property = \"key=value\") Object service1;",
+      "@OSGiNamed(bundleName = \"cl.annotation.*\", bundleVersionRange = \"[1.0.0,2.0.0)\") Object service2;",
+      "@OSGiNamed(name = \"TODO1\", property = \"key=value\") Object service3;",
+      "@OSGiNamed Object service4;");
+    assertEquals(errors.toString(), 0, errors.size());
+
+    List<String> lines = Files.readAllLines(new File(temporaryFolder.getRoot(), INDEX).toPath(), StandardCharsets.UTF_8);
+    assertEquals(Arrays.asList("filter (&(component.name=TODO1)(key=value))", "range [1.0.0,2.0.0)", "glob cl.annotation.*"), lines.subList(1, lines.size()));
+  }
+
+  static Map<String, Object> properties(String componentName, int ranking)
+  {
+    Map<String, Object> properties = new HashMap<>();
+    properties.put("component.name", componentName);
+    properties.put("service.ranking", ranking);
+    return properties;
+  }
+
+  /**
+   * Run {@link OSGiNamedProcessor} on a class declaring the fields
+   * @return the errors
+   */
+  static List<Diagnostic<? extends JavaFileObject>> compile(File outputDirectory, String... fields) throws Exception
+  {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    Assume.assumeNotNull(compiler);
+
+    StringBuilder classPath = new StringBuilder();
+    for(Class<?> clazz : new Class<?>[]{OSGiNamed.class, ServiceReference.class, Qualifier.class})
+    {
+      URL location = clazz.getProtectionDomain().getCodeSource().getLocation();
+      Assume.assumeTrue("file".equals(location.getProtocol()));
+      classPath.append(new File(location.toURI())).append(File.pathSeparatorChar);
+    }
+
+    // the first field is declared at line 2
+    String source = "import cl.annotation.OSGiNamed; public class Sample {\n" + String.join("\n", fields) + "\n}\n";
+    JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///Sample.java"), JavaFileObject.Kind.SOURCE)
+    {
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors)
+      {
+        return source;
+      }
+    };
+
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    List<String> options = Arrays.asList("-proc:only", "-classpath", classPath.toString(), "-d", outputDirectory.getPath());
+    CompilationTask task = compiler.getTask(null, null, diagnostics, options, null, Collections.singletonList(sourceFile));
+    task.setProcessors(Collections.singletonList(new OSGiNamedProcessor()));
+    task.call();
+
+    List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<>();
+    for(Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+    {
+      if (diagnostic.getKind() == Diagnostic.Kind.ERROR)
+        errors.add(diagnostic);
+    }
+    return errors;
+  }
+
+  static InjectionPointMetrics getMetrics(OSGiNamedObjectSupplier supplier, Type desiredType, Annotation osgiNamed)
+  {
+    for(InjectionPointMetrics injectionPoint : supplier.getInjectionPoints())
+    {
+      if (injectionPoint.getInjectionPoint().equals(desiredType.getTypeName() + " " + osgiNamed))
+        return injectionPoint;
+    }
+    throw new AssertionError("no metrics for " + osgiNamed);
+  }
+
+  static IObjectDescriptor descriptor(Type desiredType, Annotation... annotations)
+  {
+    return new ObjectDescriptor(desiredType, annotations);
+  }
+
+  static Type collectionType()
+  {
+    try
+    {
+      return CollectionHolder.class.getDeclaredField("services").getGenericType();
+    }
+    catch(NoSuchFieldException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static Type supplierType()
+  {
+    try
+    {
+      return CollectionHolder.class.getDeclaredField("deferred").getGenericType();
+    }
+    catch(NoSuchFieldException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  interface IService
+  {
+  }
+
+  static final class OptionalImpl implements org.eclipse.e4.core.di.annotations.Optional
+  {
+    @Override
+    public Class<? extends Annotation> annotationType()
+    {
+      return org.eclipse.e4.core.di.annotations.Optional.class;
+    }
+  }
+
+  static class Service implements IService
+  {
+  }
+
+  public static final class Service1Predicate implements Predicate<ServiceReference<?>>
+  {
+    static volatile boolean acceptAll = true;
+
+    @Override
+    public boolean test(ServiceReference<?> ref)
+    {
+      return acceptAll || "Service1".equals(ref.getProperty("component.name"));
+    }
+  }
+
+  static class CollectionHolder
+  {
+    Collection<IService> services;
+    Supplier<IService> deferred;
+  }
+
+  static final class CountingRequestor implements IRequestor
+  {
+    volatile int resolveCount;
+    boolean valid = true;
+
+    @Override
+    public boolean uninject(Object object, PrimaryObjectSupplier objectSupplier)
+    {
+      return false;
+    }
+
+    @Override
+    public void resolveArguments(boolean initial)
+    {
+      resolveCount++;
+    }
+
+    @Override
+    public boolean isValid()
+    {
+      return valid;
+    }
+
+    @Override
+    public Class<?> getRequestingObjectClass()
+    {
+      return null;
+    }
+
+    @Override
+    public Object getRequestingObject()
+    {
+      return null;
+    }
+
+    @Override
+    public Object execute()
+    {
+      return null;
+    }
+
+    @Override
+    public void disposed(PrimaryObjectSupplier objectSupplier)
+    {
+    }
+  }
+}
@@ -20,9 +20,13 @@ import java.util.Collection;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 
 import org.eclipse.e4.core.contexts.ContextInjectionFactory;
 import org.eclipse.e4.core.contexts.EclipseContextFactory;
@@ -38,12 +42,16 @@ import org.junit.Test;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceFactory;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.annotations.Component;
 
 import cl.annotation.AbstractConfiguration;
 import cl.annotation.OSGiNamed;
+import cl.annotation.OSGiNamedMetrics;
+import cl.annotation.OSGiNamedMetrics.InjectionPointMetrics;
+import cl.annotation.OSGiNamedNotifications;
 import cl.annotation.internal.OSGiNamedObjectSupplier;
 
 /**
@@ -306,10 +314,10 @@ public class OSGiNamed_TestCase
       Map<?, ?> listeners = (Map<?, ?>) listenersField.get(osgiNamedObjectSupplier);
       assertEquals(1, listeners.size());
 
-      Field serviceListenersField = OSGiNamedObjectSupplier.class.getDeclaredField("serviceListeners");
-      serviceListenersField.setAccessible(true);
-      Map<?, ?> serviceListeners = (Map<?, ?>) serviceListenersField.get(osgiNamedObjectSupplier);
-      assertEquals(1, serviceListeners.size());
+      Field subscriptionsField = OSGiNamedObjectSupplier.class.getDeclaredField("subscriptions");
+      subscriptionsField.setAccessible(true);
+      Map<?, ?> subscriptions = (Map<?, ?>) subscriptionsField.get(osgiNamedObjectSupplier);
+      assertEquals(1, subscriptions.size());
     }
     catch(IllegalArgumentException | IllegalAccessException | NoSuchFieldException | SecurityException e)
     {
@@ -327,10 +335,10 @@ public class OSGiNamed_TestCase
       Map<?, ?> listeners = (Map<?, ?>) listenersField.get(osgiNamedObjectSupplier);
       assertEquals(0, listeners.size());
 
-      Field serviceListenersField = OSGiNamedObjectSupplier.class.getDeclaredField("serviceListeners");
-      serviceListenersField.setAccessible(true);
-      Map<?, ?> serviceListeners = (Map<?, ?>) serviceListenersField.get(osgiNamedObjectSupplier);
-      assertEquals(0, serviceListeners.size());
+      Field subscriptionsField = OSGiNamedObjectSupplier.class.getDeclaredField("subscriptions");
+      subscriptionsField.setAccessible(true);
+      Map<?, ?> subscriptions = (Map<?, ?>) subscriptionsField.get(osgiNamedObjectSupplier);
+      assertEquals(0, subscriptions.size());
     }
     catch(IllegalArgumentException | IllegalAccessException | NoSuchFieldException | SecurityException e)
     {
@@ -425,6 +433,268 @@ public class OSGiNamed_TestCase
     assertFalse(collectionService.multipleServices2.contains(run3));
   }
 
+  @Test
+  public void testMultipleService_collection_batch()
+  {
+    Bundle bundle = FrameworkUtil.getBundle(OSGiNamedObjectSupplier.class);
+    BundleContext bundleContext = bundle.getBundleContext();
+    IEclipseContext eclipseCtx = EclipseContextFactory.getServiceContext(bundleContext);
+    OSGiNamedNotifications notifications = bundleContext.getService(bundleContext.getServiceReference(OSGiNamedNotifications.class));
+
+    CollectionService collectionService = ContextInjectionFactory.make(CollectionService.class, eclipseCtx);
+    assertEquals(1, collectionService.call);
+
+    Hashtable<String, Object> properties = new Hashtable<>();
+    properties.put("component.name", "Run3");
+    properties.put("service.ranking", 3);
+    ServiceRegistration<IMultipleService> registerService;
+    ServiceRegistration<IMultipleService> registerService2;
+
+    notifications.beginBatch();
+    try
+    {
+      registerService = bundleContext.registerService(IMultipleService.class, new Run3(), properties);
+      registerService2 = bundleContext.registerService(IMultipleService.class, new Run3(), properties);
+      assertEquals(1, collectionService.call);
+      assertEquals(2, collectionService.multipleServices.size());
+    }
+    finally
+    {
+      notifications.endBatch();
+    }
+
+    try
+    {
+      assertEquals(2, collectionService.call);
+      assertEquals(4, collectionService.multipleServices.size());
+    }
+    finally
+    {
+      registerService.unregister();
+      registerService2.unregister();
+    }
+  }
+
+  @Test
+  public void testMultipleService_asyncNotification()
+  {
+    Bundle bundle = FrameworkUtil.getBundle(OSGiNamedObjectSupplier.class);
+    BundleContext bundleContext = bundle.getBundleContext();
+    IEclipseContext eclipseCtx = EclipseContextFactory.getServiceContext(bundleContext);
+
+    // synchronous executor counting the notifications
+    AtomicInteger executions = new AtomicInteger();
+    Executor executor = runnable -> {
+      executions.incrementAndGet();
+      runnable.run();
+    };
+    Hashtable<String, Object> executorProperties = new Hashtable<>();
+    executorProperties.put(OSGiNamedNotifications.EXECUTOR_PROPERTY, "true");
+    ServiceRegistration<Executor> registerExecutor = bundleContext.registerService(Executor.class, executor, executorProperties);
+
+    try
+    {
+      AsyncService asyncService = ContextInjectionFactory.make(AsyncService.class, eclipseCtx);
+      assertEquals(2, asyncService.multipleServices.size());
+      assertEquals(0, executions.get());
+
+      Hashtable<String, Object> properties = new Hashtable<>();
+      properties.put("component.name", "Run3");
+      properties.put("service.ranking", 3);
+      ServiceRegistration<IMultipleService> registerService = bundleContext.registerService(IMultipleService.class, new Run3(), properties);
+      try
+      {
+        assertEquals(1, executions.get());
+        assertEquals(3, asyncService.multipleServices.size());
+      }
+      finally
+      {
+        registerService.unregister();
+      }
+    }
+    finally
+    {
+      registerExecutor.unregister();
+    }
+  }
+
+  @Test
+  public void testServiceUsages()
+  {
+    Bundle bundle = FrameworkUtil.getBundle(OSGiNamedObjectSupplier.class);
+    BundleContext bundleContext = bundle.getBundleContext();
+
+    CountingServiceFactory serviceFactory = new CountingServiceFactory();
+    ServiceRegistration<?> registerService = bundleContext.registerService(ICountedService.class.getName(), serviceFactory, null);
+    ServiceRegistration<?> registerService2 = null;
+
+    try
+    {
+      // the value of a plan with a predicate is not reused, so each call acquires the service again
+      Type desiredType = ICountedService.class;
+      Annotation[] annotations = {new AcceptAllConfiguration()};
+      IObjectDescriptor descriptor = new ObjectDescriptor(desiredType, annotations);
+      CountingRequestor requestor = new CountingRequestor();
+
+      Object service = null;
+      for(int i = 0; i < 100_000; i++)
+        service = osgiNamedObjectSupplier.get(descriptor, requestor, true, false);
+      assertTrue(CountedService.class.isInstance(service));
+      InjectionPointMetrics metrics = null;
+      for(InjectionPointMetrics injectionPoint : osgiNamedObjectSupplier.getInjectionPoints())
+      {
+        if (injectionPoint.getInjectionPoint().equals(desiredType.getTypeName() + " " + annotations[0]))
+          metrics = injectionPoint;
+      }
+      assertNotNull(metrics);
+      assertEquals(100_000, metrics.getGetServiceCount());
+
+      // each getService is balanced by an ungetService, so the service factory is called only once
+      assertEquals(1, serviceFactory.getServiceCount.get());
+      assertEquals(0, serviceFactory.ungetServiceCount.get());
+
+      // the disposed requestor releases its service on the next notification
+      requestor.valid = false;
+      Hashtable<String, Object> properties = new Hashtable<>();
+      properties.put("service.ranking", 1);
+      registerService2 = bundleContext.registerService(ICountedService.class.getName(), new CountedService(), properties);
+
+      // only one ungetService is needed to release the service: the use count did not grow
+      assertEquals(1, serviceFactory.getServiceCount.get());
+      assertEquals(1, serviceFactory.ungetServiceCount.get());
+    }
+    finally
+    {
+      registerService.unregister();
+      if (registerService2 != null)
+        registerService2.unregister();
+    }
+  }
+
+  @Test
+  public void testLazyCollection()
+  {
+    Bundle bundle = FrameworkUtil.getBundle(OSGiNamedObjectSupplier.class);
+    BundleContext bundleContext = bundle.getBundleContext();
+    IEclipseContext eclipseCtx = EclipseContextFactory.getServiceContext(bundleContext);
+
+    CountingServiceFactory serviceFactory = new CountingServiceFactory();
+    ServiceRegistration<?> registerService = bundleContext.registerService(ICountedService.class.getName(), serviceFactory, null);
+
+    try
+    {
+      LazyService lazyService = ContextInjectionFactory.make(LazyService.class, eclipseCtx);
+      assertEquals(1, lazyService.countedServices.size());
+      assertFalse(lazyService.countedServices.isEmpty());
+      assertEquals(0, serviceFactory.getServiceCount.get());
+
+      assertTrue(CountedService.class.isInstance(lazyService.countedServices.iterator().next()));
+      assertTrue(CountedService.class.isInstance(lazyService.countedServices.iterator().next()));
+      assertEquals(1, serviceFactory.getServiceCount.get());
+    }
+    finally
+    {
+      registerService.unregister();
+    }
+  }
+
+  @Test
+  public void testDeferredService()
+  {
+    Bundle bundle = FrameworkUtil.getBundle(OSGiNamedObjectSupplier.class);
+    BundleContext bundleContext = bundle.getBundleContext();
+    IEclipseContext eclipseCtx = EclipseContextFactory.getServiceContext(bundleContext);
+
+    CountingServiceFactory serviceFactory = new CountingServiceFactory();
+    ServiceRegistration<?> registerService = null;
+
+    try
+    {
+      DeferredService deferredService = ContextInjectionFactory.make(DeferredService.class, eclipseCtx);
+      assertTrue(OneService.class.isInstance(deferredService.oneService.get()));
+      assertEquals(2, deferredService.multipleServices.get().size());
+      assertNull(deferredService.countedService.get());
+
+      // the service is looked up on each call
+      registerService = bundleContext.registerService(ICountedService.class.getName(), serviceFactory, null);
+      assertEquals(0, serviceFactory.getServiceCount.get());
+      assertTrue(CountedService.class.isInstance(deferredService.countedService.get()));
+      assertEquals(1, serviceFactory.getServiceCount.get());
+    }
+    finally
+    {
+      if (registerService != null)
+        registerService.unregister();
+    }
+  }
+
+  @Test
+  public void testHighestRanking_modified()
+  {
+    Bundle bundle = FrameworkUtil.getBundle(OSGiNamedObjectSupplier.class);
+    BundleContext bundleContext = bundle.getBundleContext();
+
+    Type desiredType = ICountedService.class;
+    Annotation[] annotations = {new OSGiNamedBuilder().build()};
+    IObjectDescriptor descriptor = new ObjectDescriptor(desiredType, annotations);
+    IRequestor requestor = null;
+
+    CountedService countedService1 = new CountedService();
+    CountedService countedService2 = new CountedService();
+    Hashtable<String, Object> properties = new Hashtable<>();
+    properties.put("service.ranking", 5);
+    ServiceRegistration<?> registerService1 = bundleContext.registerService(ICountedService.class.getName(), countedService1, properties);
+    properties.put("service.ranking", 10);
+    ServiceRegistration<?> registerService2 = bundleContext.registerService(ICountedService.class.getName(), countedService2, properties);
+
+    try
+    {
+      assertSame(countedService2, osgiNamedObjectSupplier.get(descriptor, requestor, false, false));
+
+      // the ranking index follows the modified ranking
+      properties.put("service.ranking", 20);
+      registerService1.setProperties(properties);
+      assertSame(countedService1, osgiNamedObjectSupplier.get(descriptor, requestor, false, false));
+
+      registerService1.unregister();
+      registerService1 = null;
+      assertSame(countedService2, osgiNamedObjectSupplier.get(descriptor, requestor, false, false));
+    }
+    finally
+    {
+      if (registerService1 != null)
+        registerService1.unregister();
+      registerService2.unregister();
+    }
+  }
+
+  @Test
+  public void testMetrics()
+  {
+    Type desiredType = IMultipleService.class;
+    Annotation[] annotations = {new OSGiNamedBuilder().withProperty(new String[]{"p=Run1"}).build()};
+    IObjectDescriptor descriptor = new ObjectDescriptor(desiredType, annotations);
+    IRequestor requestor = null;
+
+    for(int i = 0; i < 3; i++)
+      assertTrue(Run1.class.isInstance(osgiNamedObjectSupplier.get(descriptor, requestor, false, false)));
+
+    InjectionPointMetrics metrics = null;
+    for(InjectionPointMetrics injectionPoint : osgiNamedObjectSupplier.getInjectionPoints())
+    {
+      if (injectionPoint.getInjectionPoint().equals(desiredType.getTypeName() + " " + annotations[0]))
+        metrics = injectionPoint;
+    }
+    assertNotNull(metrics);
+    assertEquals(3, metrics.getResolutionCount());
+    assertEquals(3, Arrays.stream(metrics.getLatencyHistogram()).sum());
+
+    // Run2 has the highest ranking but is rejected by the property
+    assertEquals(6, metrics.getScannedReferenceCount());
+    assertEquals(Long.valueOf(3), metrics.getRejectedReferenceCounts().get(OSGiNamedMetrics.STAGE_FILTER));
+    assertEquals(3, metrics.getGetServiceCount());
+  }
+
   @Test
   public void testDelegateService()
   {
@@ -637,6 +907,18 @@ public class OSGiNamed_TestCase
       this.names = names;
       return this;
     }
+
+    OSGiNamedBuilder withBundleName(String bundleName)
+    {
+      this.bundleNames = new String[]{bundleName};
+      return this;
+    }
+
+    OSGiNamedBuilder withBundleVersion(String bundleVersion)
+    {
+      this.bundleVersions = new String[]{bundleVersion};
+      return this;
+    }
   }
 
   static class OSGiNamedImpl extends AbstractConfiguration
@@ -805,6 +1087,36 @@ public class OSGiNamed_TestCase
     }
   }
 
+  public static class AsyncService
+  {
+    @Inject
+    @OSGiNamed(asyncNotification = true)
+    Collection<IMultipleService> multipleServices;
+  }
+
+  public static class LazyService
+  {
+    @Inject
+    @OSGiNamed(lazyCollection = true)
+    Collection<ICountedService> countedServices;
+  }
+
+  public static class DeferredService
+  {
+    @Inject
+    @OSGiNamed
+    Supplier<IOneService> oneService;
+
+    @Inject
+    @OSGiNamed
+    Supplier<Collection<IMultipleService>> multipleServices;
+
+    @Inject
+    @OSGiNamed
+    @Optional
+    Supplier<ICountedService> countedService;
+  }
+
   public static class DelegateService
   {
     @Inject
@@ -828,6 +1140,32 @@ public class OSGiNamed_TestCase
     IMultipleService multipleService1;
   }
 
+  static final class AcceptAllConfiguration extends OSGiNamedImpl
+  {
+    @SuppressWarnings("unchecked")
+    AcceptAllConfiguration()
+    {
+      super(new String[0], new String[0], "", new Class[0], new Class[0], new Class<?>[0], new Class<?>[0], true, new String[0], new String[0]);
+    }
+
+    @Override
+    public Class<? extends Predicate<ServiceReference<?>>> serviceReferencePredicate()
+    {
+      return AcceptAllPredicate.class;
+    }
+  }
+
+  @Singleton
+  public static final class AcceptAllPredicate implements Predicate<ServiceReference<?>>
+  {
+    @Override
+    public boolean test(ServiceReference<?> ref)
+    {
+      return true;
+    }
+  }
+
+  @Singleton
   public static final class MyServiceReferencePredicate implements Predicate<ServiceReference<?>>
   {
     @Override
@@ -880,6 +1218,7 @@ public class OSGiNamed_TestCase
 
   }
 
+  @SuppressWarnings("OSGiNamed") // invalid on purpose, the error is checked at runtime
   public static class BundleServiceBadInput
   {
     @Inject
@@ -887,6 +1226,7 @@ public class OSGiNamed_TestCase
     IMultipleService badInput;
   }
 
+  @SuppressWarnings("OSGiNamed") // invalid on purpose, the error is checked at runtime
   public static class BundleServiceBadInput2
   {
     @Inject
@@ -894,6 +1234,7 @@ public class OSGiNamed_TestCase
     IMultipleService badInput;
   }
 
+  @SuppressWarnings("OSGiNamed") // invalid on purpose, the error is checked at runtime
   public static class BundleServiceBadInput3
   {
     @Inject
@@ -901,6 +1242,7 @@ public class OSGiNamed_TestCase
     IMultipleService badInput;
   }
 
+  @SuppressWarnings("OSGiNamed") // invalid on purpose, the error is checked at runtime
   public static class BundleServiceBadInput4
   {
     @Inject
@@ -908,6 +1250,78 @@ public class OSGiNamed_TestCase
     IMultipleService badInput;
   }
 
+  interface ICountedService
+  {
+  }
+
+  public static class CountedService implements ICountedService
+  {
+  }
+
+  static final class CountingServiceFactory implements ServiceFactory<ICountedService>
+  {
+    final AtomicInteger getServiceCount = new AtomicInteger();
+    final AtomicInteger ungetServiceCount = new AtomicInteger();
+
+    @Override
+    public ICountedService getService(Bundle bundle, ServiceRegistration<ICountedService> registration)
+    {
+      getServiceCount.incrementAndGet();
+      return new CountedService();
+    }
+
+    @Override
+    public void ungetService(Bundle bundle, ServiceRegistration<ICountedService> registration, ICountedService service)
+    {
+      ungetServiceCount.incrementAndGet();
+    }
+  }
+
+  static final class CountingRequestor implements IRequestor
+  {
+    volatile boolean valid = true;
+
+    @Override
+    public boolean uninject(Object object, PrimaryObjectSupplier objectSupplier) throws InjectionException
+    {
+      return false;
+    }
+
+    @Override
+    public void resolveArguments(boolean initial) throws InjectionException
+    {
+    }
+
+    @Override
+    public boolean isValid()
+    {
+      return valid;
+    }
+
+    @Override
+    public Class<?> getRequestingObjectClass()
+    {
+      return null;
+    }
+
+    @Override
+    public Object getRequestingObject()
+    {
+      return null;
+    }
+
+    @Override
+    public Object execute() throws InjectionException
+    {
+      return null;
+    }
+
+    @Override
+    public void disposed(PrimaryObjectSupplier objectSupplier) throws InjectionException
+    {
+    }
+  }
+
   interface IMultipleService
   {
   }
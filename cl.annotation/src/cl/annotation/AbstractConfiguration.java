@@ -87,4 +87,16 @@ public class AbstractConfiguration implements OSGiNamed
   {
     return null;
   }
+
+  @Override
+  public boolean asyncNotification()
+  {
+    return false;
+  }
+
+  @Override
+  public boolean lazyCollection()
+  {
+    return false;
+  }
 }
@@ -2,11 +2,14 @@ package cl.annotation;
 
 import java.util.function.Predicate;
 
+import javax.inject.Singleton;
+
 import org.osgi.framework.ServiceReference;
 
 /**
  * The class <b>DefaultServiceReferencePredicate</b> allows to.<br>
  */
+@Singleton
 public class DefaultServiceReferencePredicate implements Predicate<ServiceReference<?>>
 {
   @Override
@@ -211,8 +211,15 @@ public @interface OSGiNamed
   /** bundle version range */
   String[] bundleVersionRange() default {};
 
+  /** serviceReference predicate (annotate a stateless predicate with {@link javax.inject.Singleton} to share one instance) */
   Class<? extends Predicate<ServiceReference<?>>> serviceReferencePredicate() default DefaultServiceReferencePredicate.class;
 
-  /** configuration (priority over other properties) */
+  /** re-inject the tracked injection point with the notification executor instead of the service event thread */
+  boolean asyncNotification() default false;
+
+  /** fetch the services of a Collection on first access (the service references are fixed when the collection is injected) */
+  boolean lazyCollection() default false;
+
+  /** configuration (priority over other properties, read once when the injection point is compiled) */
   Class<? extends AbstractConfiguration> configuration() default AbstractConfiguration.class;
 }
\ No newline at end of file
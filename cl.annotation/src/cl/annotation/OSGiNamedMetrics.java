@@ -0,0 +1,80 @@
+package cl.annotation;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MXBean;
+
+/**
+ * The interface <b>OSGiNamedMetrics</b> allows to measure the cost of the {@link OSGiNamed} injection points.<br>
+ * The metrics are accumulated for each distinct {@link OSGiNamed} and injected type since the last {@link #reset()}.
+ *
+ * <pre>
+ * for(InjectionPointMetrics metrics : osgiNamedMetrics.getInjectionPoints())
+ *   if (metrics.getTotalLatencyNanos() > 1_000_000_000L) <font style="color:#B22222; background-color:#FFE4B5;">// more than 1s spent</font>
+ *     System.out.println(metrics.getInjectionPoint());
+ * </pre>
+ *
+ * This interface is registered as an OSGi service and as the JMX MBean {@link #OBJECT_NAME}.
+ */
+@MXBean
+public interface OSGiNamedMetrics
+{
+  /** JMX object name */
+  String OBJECT_NAME = "cl.annotation:type=OSGiNamedMetrics";
+
+  /** upper bounds (exclusive, in nanoseconds) of the latency histogram buckets, the last bucket has no bound */
+  long[] LATENCY_BUCKET_BOUNDS = {1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L};
+
+  /** rejection stage: property, name and filter criterion */
+  String STAGE_FILTER = "filter";
+  /** rejection stage: bundle name and version range */
+  String STAGE_BUNDLE = "bundle";
+  /** rejection stage: serviceReference predicate */
+  String STAGE_PREDICATE = "predicate";
+  /** rejection stage: types */
+  String STAGE_TYPE = "type";
+  /** rejection stage: not have types */
+  String STAGE_NOT_HAVE_TYPE = "notHaveType";
+  /** rejection stage: annotations */
+  String STAGE_ANNOTATION = "annotation";
+  /** rejection stage: not have annotations */
+  String STAGE_NOT_HAVE_ANNOTATION = "notHaveAnnotation";
+
+  /** return the metrics of all the injection points */
+  List<InjectionPointMetrics> getInjectionPoints();
+
+  /** reset all the metrics */
+  void reset();
+
+  /**
+   * The interface <b>InjectionPointMetrics</b> allows to read the metrics of one injection point.<br>
+   */
+  interface InjectionPointMetrics
+  {
+    /** injected type and {@link OSGiNamed} criterion */
+    String getInjectionPoint();
+
+    /** number of resolutions (injections and re-injections) */
+    long getResolutionCount();
+
+    long getTotalLatencyNanos();
+
+    long getMaxLatencyNanos();
+
+    /** number of resolutions for each bucket of {@link OSGiNamedMetrics#LATENCY_BUCKET_BOUNDS} */
+    long[] getLatencyHistogram();
+
+    /** number of candidate service references checked */
+    long getScannedReferenceCount();
+
+    /** number of calls to getService */
+    long getGetServiceCount();
+
+    /** number of service references rejected by each stage (see STAGE_* constants) */
+    Map<String, Long> getRejectedReferenceCounts();
+
+    /** number of re-injections requested by service events */
+    long getNotificationCount();
+  }
+}
@@ -0,0 +1,47 @@
+package cl.annotation;
+
+/**
+ * The interface <b>OSGiNamedNotifications</b> allows to group the re-injections of the tracked {@link OSGiNamed} injection points.<br>
+ * Between {@link #beginBatch()} and {@link #endBatch()}, the service events are merged and each requestor is re-injected
+ * at most once when the outermost batch ends.
+ *
+ * <pre>
+ * notifications.beginBatch();
+ * try
+ * {
+ *   bundle.start(); <font style="color:#B22222; background-color:#FFE4B5;">// many services registered</font>
+ * }
+ * finally
+ * {
+ *   notifications.endBatch(); <font style="color:#B22222; background-color:#FFE4B5;">// one re-injection per requestor</font>
+ * }
+ * </pre>
+ *
+ * This interface is registered as an OSGi service.
+ */
+public interface OSGiNamedNotifications
+{
+  /** framework property: quiet window in milliseconds before re-injecting, 0 (default) re-injects on each event */
+  String QUIET_WINDOW_PROPERTY = "cl.annotation.notification.quietWindow";
+
+  /**
+   * framework property: maximum delay in milliseconds between the first merged notification and the re-injection,
+   * even if the events never stop (default: 10 times the quiet window)
+   */
+  String MAXIMUM_DELAY_PROPERTY = "cl.annotation.notification.maximumDelay";
+
+  /** framework property: "true" to re-inject all the tracked injection points with the notification executor */
+  String ASYNC_PROPERTY = "cl.annotation.notification.async";
+
+  /**
+   * service property: a {@link java.util.concurrent.Executor} service registered with this property set to "true"
+   * is used as notification executor (the highest ranking one), otherwise a dedicated thread is used
+   */
+  String EXECUTOR_PROPERTY = "cl.annotation.notification.executor";
+
+  /** start a batch (batches can be nested) */
+  void beginBatch();
+
+  /** end a batch and re-inject the notified requestors if it is the outermost one */
+  void endBatch();
+}
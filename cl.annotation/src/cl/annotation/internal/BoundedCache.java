@@ -0,0 +1,107 @@
+package cl.annotation.internal;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * The class <b>BoundedCache</b> allows to keep computed values in a concurrent map with a maximum size.<br>
+ * When the maximum size is reached, some entries not pinned are evicted before adding a new one.
+ */
+final class BoundedCache<K, V>
+{
+  private final int maximumSize;
+  private final Predicate<? super V> pinned;
+  private final Map<K, V> map = new ConcurrentHashMap<>();
+
+  BoundedCache(int maximumSize)
+  {
+    this(maximumSize, value -> false);
+  }
+
+  /**
+   * Constructor
+   * @param pinned check if a value must not be evicted (the cache may then exceed its maximum size)
+   */
+  BoundedCache(int maximumSize, Predicate<? super V> pinned)
+  {
+    if (maximumSize <= 0)
+      throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+    this.maximumSize = maximumSize;
+    this.pinned = pinned;
+  }
+
+  V get(K key)
+  {
+    return map.get(key);
+  }
+
+  /**
+   * Return the cached value or compute it (outside any lock) and cache it.
+   * If the mapping function throws an exception, nothing is cached.
+   */
+  V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction)
+  {
+    V value = map.get(key);
+    if (value != null)
+      return value;
+
+    value = mappingFunction.apply(key);
+    if (value == null)
+      return null;
+
+    if (map.size() >= maximumSize)
+      evict();
+
+    V previous = map.putIfAbsent(key, value);
+    return previous != null? previous : value;
+  }
+
+  void put(K key, V value)
+  {
+    if (!map.containsKey(key) && map.size() >= maximumSize)
+      evict();
+    map.put(key, value);
+  }
+
+  void remove(K key)
+  {
+    map.remove(key);
+  }
+
+  void clear()
+  {
+    map.clear();
+  }
+
+  int size()
+  {
+    return map.size();
+  }
+
+  /**
+   * Return a weakly consistent view of the cached values
+   */
+  Collection<V> values()
+  {
+    return map.values();
+  }
+
+  private void evict()
+  {
+    // remove a quarter of the entries to amortize the eviction cost
+    int toRemove = Math.max(1, maximumSize / 4);
+    Iterator<V> iterator = map.values().iterator();
+    while(toRemove > 0 && iterator.hasNext())
+    {
+      if (!pinned.test(iterator.next()))
+      {
+        iterator.remove();
+        toRemove--;
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package cl.annotation.internal;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.ComponentConstants;
+import org.osgi.service.component.runtime.ServiceComponentRuntime;
+import org.osgi.service.component.runtime.dto.ComponentDescriptionDTO;
+
+/**
+ * The class <b>BundleContextServiceRegistry</b> allows to access the services of the OSGi framework with a {@link BundleContext}.<br>
+ */
+final class BundleContextServiceRegistry implements ServiceRegistry
+{
+  private final BundleContext bundleContext;
+
+  BundleContextServiceRegistry(BundleContext bundleContext)
+  {
+    this.bundleContext = bundleContext;
+  }
+
+  @Override
+  public ServiceReference<?>[] getServiceReferences(String objectClass, String filter) throws InvalidSyntaxException
+  {
+    return bundleContext.getAllServiceReferences(objectClass, filter);
+  }
+
+  @Override
+  public <S> S getService(ServiceReference<S> ref)
+  {
+    return bundleContext.getService(ref);
+  }
+
+  @Override
+  public boolean ungetService(ServiceReference<?> ref)
+  {
+    return bundleContext.ungetService(ref);
+  }
+
+  @Override
+  public void addServiceListener(ServiceListener listener)
+  {
+    bundleContext.addServiceListener(listener);
+  }
+
+  @Override
+  public void removeServiceListener(ServiceListener listener)
+  {
+    bundleContext.removeServiceListener(listener);
+  }
+
+  @Override
+  public Bundle[] getBundles()
+  {
+    return bundleContext.getBundles();
+  }
+
+  @Override
+  public void addBundleListener(BundleListener listener)
+  {
+    bundleContext.addBundleListener(listener);
+  }
+
+  @Override
+  public void removeBundleListener(BundleListener listener)
+  {
+    bundleContext.removeBundleListener(listener);
+  }
+
+  @Override
+  public String getProperty(String key)
+  {
+    return bundleContext.getProperty(key);
+  }
+
+  /**
+   * Find the implementation class with the component description of the service
+   * @return the class or <code>null</code> when the service is not a declarative service
+   */
+  @Override
+  public Class<?> findImplementationClass(ServiceReference<?> ref)
+  {
+    Object componentName = ref.getProperty(ComponentConstants.COMPONENT_NAME);
+    Bundle bundle = ref.getBundle();
+    if (!(componentName instanceof String) || bundle == null)
+      return null;
+
+    ServiceReference<ServiceComponentRuntime> runtimeRef = bundleContext.getServiceReference(ServiceComponentRuntime.class);
+    if (runtimeRef == null)
+      return null;
+    ServiceComponentRuntime runtime = bundleContext.getService(runtimeRef);
+    if (runtime == null)
+      return null;
+
+    try
+    {
+      ComponentDescriptionDTO description = runtime.getComponentDescriptionDTO(bundle, (String) componentName);
+      if (description == null || description.implementationClass == null)
+        return null;
+      return bundle.loadClass(description.implementationClass);
+    }
+    catch(ClassNotFoundException | IllegalStateException e)
+    {
+      return null;
+    }
+    finally
+    {
+      bundleContext.ungetService(runtimeRef);
+    }
+  }
+
+  @Override
+  public Collection<URL> findEntries(String path)
+  {
+    List<URL> entries = new ArrayList<>();
+    for(Bundle bundle : bundleContext.getBundles())
+    {
+      try
+      {
+        URL entry = bundle.getEntry(path);
+        if (entry != null)
+          entries.add(entry);
+      }
+      catch(IllegalStateException e)
+      {
+        // the bundle has been uninstalled
+      }
+    }
+    return entries;
+  }
+}
@@ -0,0 +1,199 @@
+package cl.annotation.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+
+/**
+ * The class <b>BundleIndex</b> allows to translate the bundle criterion of a plan into the ids of the matching bundles.<br>
+ * The bundles are indexed by symbolic name and version, a {@link SynchronousBundleListener} keeps the index up to date.
+ * The ids computed for a plan are cached until the next bundle event, so the candidates are checked with their
+ * <code>service.bundleid</code> property instead of their bundle name and version.
+ */
+final class BundleIndex implements SynchronousBundleListener
+{
+  private final ServiceRegistry serviceRegistry;
+  private final Map<String, Map<Long, Version>> bundlesBySymbolicName = new HashMap<>();
+  private final Map<Long, String> symbolicNames = new HashMap<>();
+  private final Map<InjectionPlan, Set<Long>> bundleIdsByPlan = new ConcurrentHashMap<>();
+  private boolean registered;
+
+  BundleIndex(ServiceRegistry serviceRegistry)
+  {
+    this.serviceRegistry = serviceRegistry;
+  }
+
+  /**
+   * Return the ids of the bundles matching the bundleName and bundleVersionRange criterion of the plan
+   */
+  Set<Long> getBundleIds(InjectionPlan plan)
+  {
+    Set<Long> bundleIds = bundleIdsByPlan.get(plan);
+    if (bundleIds != null)
+      return bundleIds;
+
+    synchronized(this)
+    {
+      ensureRegistered();
+      bundleIds = Collections.unmodifiableSet(findBundleIds(plan.bundleNameMatchers, plan.bundleVersionRanges));
+      bundleIdsByPlan.put(plan, bundleIds);
+      return bundleIds;
+    }
+  }
+
+  @Override
+  public synchronized void bundleChanged(BundleEvent event)
+  {
+    if (!registered)
+      return;
+
+    Bundle bundle = event.getBundle();
+    int type = event.getType();
+    if (type == BundleEvent.INSTALLED || type == BundleEvent.UPDATED)
+    {
+      remove(bundle.getBundleId());
+      add(bundle);
+    }
+    else if (type == BundleEvent.UNINSTALLED)
+      remove(bundle.getBundleId());
+    else
+      return;
+    bundleIdsByPlan.clear();
+  }
+
+  synchronized void close()
+  {
+    if (registered)
+    {
+      serviceRegistry.removeBundleListener(this);
+      registered = false;
+    }
+    bundlesBySymbolicName.clear();
+    symbolicNames.clear();
+    bundleIdsByPlan.clear();
+  }
+
+  private void ensureRegistered()
+  {
+    if (registered)
+      return;
+
+    // the listener is added first so no bundle installed meanwhile is missed
+    serviceRegistry.addBundleListener(this);
+    registered = true;
+    for(Bundle bundle : serviceRegistry.getBundles())
+    {
+      remove(bundle.getBundleId());
+      add(bundle);
+    }
+  }
+
+  private void add(Bundle bundle)
+  {
+    String symbolicName = bundle.getSymbolicName();
+    bundlesBySymbolicName.computeIfAbsent(symbolicName, name -> new HashMap<>()).put(bundle.getBundleId(), bundle.getVersion());
+    symbolicNames.put(bundle.getBundleId(), symbolicName);
+  }
+
+  private void remove(long bundleId)
+  {
+    if (!symbolicNames.containsKey(bundleId))
+      return;
+    String symbolicName = symbolicNames.remove(bundleId);
+    Map<Long, Version> versions = bundlesBySymbolicName.get(symbolicName);
+    versions.remove(bundleId);
+    if (versions.isEmpty())
+      bundlesBySymbolicName.remove(symbolicName);
+  }
+
+  private Set<Long> findBundleIds(GlobMatcher[] bundleNameMatchers, VersionRange[] bundleVersionRanges)
+  {
+    // without pattern, only the bundles with the given names are checked
+    boolean scanAll = bundleNameMatchers.length == 0;
+    for(GlobMatcher bundleNameMatcher : bundleNameMatchers)
+      scanAll |= bundleNameMatcher.hasWildcard();
+
+    Set<Long> bundleIds = new HashSet<>();
+    if (scanAll)
+    {
+      for(Map.Entry<String, Map<Long, Version>> entry : bundlesBySymbolicName.entrySet())
+        addAccepted(bundleIds, entry.getKey(), entry.getValue(), bundleNameMatchers, bundleVersionRanges);
+    }
+    else
+    {
+      for(GlobMatcher bundleNameMatcher : bundleNameMatchers)
+      {
+        String symbolicName = bundleNameMatcher.toString();
+        Map<Long, Version> versions = bundlesBySymbolicName.get(symbolicName);
+        if (versions != null)
+          addAccepted(bundleIds, symbolicName, versions, bundleNameMatchers, bundleVersionRanges);
+      }
+    }
+    return bundleIds;
+  }
+
+  private static void addAccepted(Set<Long> bundleIds, String symbolicName, Map<Long, Version> versions, GlobMatcher[] bundleNameMatchers,
+    VersionRange[] bundleVersionRanges)
+  {
+    for(Map.Entry<Long, Version> entry : versions.entrySet())
+    {
+      if (accepts(symbolicName, entry.getValue(), bundleNameMatchers, bundleVersionRanges))
+        bundleIds.add(entry.getKey());
+    }
+  }
+
+  private static boolean accepts(String symbolicName, Version version, GlobMatcher[] bundleNameMatchers, VersionRange[] bundleVersionRanges)
+  {
+    // check bundle name
+    int foundIndex = findBundleName(symbolicName, bundleNameMatchers);
+    if (foundIndex == -1)
+      foundIndex = findBundleNameWithPatterns(symbolicName, bundleNameMatchers);
+
+    if (foundIndex >= 0)
+    {
+      // check bundle version
+      if (bundleVersionRanges.length != 0 && !bundleVersionRanges[foundIndex].includes(version))
+        foundIndex = -1;
+    }
+    else if (bundleNameMatchers.length == 0)
+    {
+      // check bundle version
+      if (bundleVersionRanges[0].includes(version))
+        foundIndex = 0;
+    }
+    return foundIndex >= 0;
+  }
+
+  private static int findBundleNameWithPatterns(String symbolicName, GlobMatcher[] bundleNameMatchers)
+  {
+    if (symbolicName == null)
+      return -1;
+    for(int index = 0; index < bundleNameMatchers.length; index++)
+    {
+      GlobMatcher bundleNameMatcher = bundleNameMatchers[index];
+      if (bundleNameMatcher.hasWildcard() && bundleNameMatcher.matches(symbolicName))
+        return index;
+    }
+    return -1;
+  }
+
+  private static int findBundleName(String symbolicName, GlobMatcher[] bundleNameMatchers)
+  {
+    for(int index = 0; index < bundleNameMatchers.length; index++)
+    {
+      GlobMatcher bundleNameMatcher = bundleNameMatchers[index];
+      if (!bundleNameMatcher.hasWildcard() && bundleNameMatcher.matches(symbolicName))
+        return index;
+    }
+    return -1;
+  }
+}
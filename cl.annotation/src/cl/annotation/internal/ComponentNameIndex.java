@@ -0,0 +1,160 @@
+package cl.annotation.internal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The class <b>ComponentNameIndex</b> allows to find the services of an <code>objectClass</code> by their 'component.name'.<br>
+ * An <code>objectClass</code> is indexed from the {@link RankingIndex} on its first lookup, then updated from the service
+ * events given to {@link #update(ServiceEvent)}. The references of a name are sorted by ranking, so a plan selecting a
+ * service only by its name is resolved with one map lookup.
+ */
+final class ComponentNameIndex
+{
+  static final String COMPONENT_NAME = "component.name";
+
+  private static final ServiceReference<?>[] EMPTY = new ServiceReference<?>[0];
+
+  private final RankingIndex rankingIndex;
+  private final Set<String> indexedObjectClasses = ConcurrentHashMap.newKeySet();
+  private final Map<String, ServiceReference<?>[]> refsByKey = new ConcurrentHashMap<>();
+  private final Map<ServiceReference<?>, String> componentNames = new HashMap<>();
+
+  ComponentNameIndex(RankingIndex rankingIndex)
+  {
+    this.rankingIndex = rankingIndex;
+  }
+
+  /**
+   * Return the key of a component name for an objectClass, computed once by the plan
+   */
+  static String key(String objectClass, String componentName)
+  {
+    // an objectClass contains no '/'
+    return objectClass + '/' + componentName;
+  }
+
+  /**
+   * Return the references of the objectClass with the component name, sorted by ranking (the array must not be modified)
+   * @param key the value returned by {@link #key(String, String)}
+   */
+  ServiceReference<?>[] get(String objectClass, String key)
+  {
+    if (!indexedObjectClasses.contains(objectClass))
+    {
+      synchronized(this)
+      {
+        if (!indexedObjectClasses.contains(objectClass))
+        {
+          for(ServiceReference<?> ref : rankingIndex.get(objectClass))
+          {
+            // an unregistered reference may remain when its event was received before the ranking index was queried
+            if (ref.getBundle() != null)
+              add(objectClass, ref);
+          }
+          indexedObjectClasses.add(objectClass);
+        }
+      }
+    }
+    ServiceReference<?>[] refs = refsByKey.get(key);
+    return refs == null? EMPTY : refs;
+  }
+
+  /**
+   * Update the indexed references with a service event
+   */
+  synchronized void update(ServiceEvent event)
+  {
+    int type = event.getType();
+    if (indexedObjectClasses.isEmpty() || (type != ServiceEvent.REGISTERED && type != ServiceEvent.MODIFIED && type != ServiceEvent.UNREGISTERING))
+      return;
+
+    ServiceReference<?> ref = event.getServiceReference();
+    Object objectClasses = ref.getProperty(Constants.OBJECTCLASS);
+    if (!(objectClasses instanceof String[]))
+      return;
+
+    // the component name may have been modified
+    String previousName = componentNames.remove(ref);
+    for(String objectClass : (String[]) objectClasses)
+    {
+      if (!indexedObjectClasses.contains(objectClass))
+        continue;
+      if (previousName != null)
+        remove(key(objectClass, previousName), ref);
+      if (type != ServiceEvent.UNREGISTERING)
+        add(objectClass, ref);
+    }
+  }
+
+  synchronized void clear()
+  {
+    indexedObjectClasses.clear();
+    refsByKey.clear();
+    componentNames.clear();
+  }
+
+  private void add(String objectClass, ServiceReference<?> ref)
+  {
+    Object componentName = ref.getProperty(COMPONENT_NAME);
+    if (!(componentName instanceof String))
+      return;
+    componentNames.put(ref, (String) componentName);
+    String key = key(objectClass, (String) componentName);
+    ServiceReference<?>[] refs = refsByKey.get(key);
+    refsByKey.put(key, insertSorted(refs == null? EMPTY : removeSorted(refs, ref), ref));
+  }
+
+  private void remove(String key, ServiceReference<?> ref)
+  {
+    ServiceReference<?>[] refs = refsByKey.get(key);
+    if (refs == null)
+      return;
+    refs = removeSorted(refs, ref);
+    if (refs.length == 0)
+      refsByKey.remove(key);
+    else
+      refsByKey.put(key, refs);
+  }
+
+  /**
+   * Return a copy of the sorted references without the reference
+   */
+  private static ServiceReference<?>[] removeSorted(ServiceReference<?>[] refs, ServiceReference<?> ref)
+  {
+    Object serviceId = ref.getProperty(Constants.SERVICE_ID);
+    for(int i = 0; i < refs.length; i++)
+    {
+      if (serviceId.equals(refs[i].getProperty(Constants.SERVICE_ID)))
+      {
+        ServiceReference<?>[] newRefs = new ServiceReference<?>[refs.length - 1];
+        System.arraycopy(refs, 0, newRefs, 0, i);
+        System.arraycopy(refs, i + 1, newRefs, i, refs.length - i - 1);
+        return newRefs;
+      }
+    }
+    return refs;
+  }
+
+  /**
+   * Return a copy of the sorted references with the reference inserted at its ranking
+   */
+  private static ServiceReference<?>[] insertSorted(ServiceReference<?>[] refs, ServiceReference<?> ref)
+  {
+    int index = Arrays.binarySearch(refs, ref, LiveResult.RANKING_ORDER);
+    if (index < 0)
+      index = -index - 1;
+    ServiceReference<?>[] newRefs = new ServiceReference<?>[refs.length + 1];
+    System.arraycopy(refs, 0, newRefs, 0, index);
+    newRefs[index] = ref;
+    System.arraycopy(refs, index, newRefs, index + 1, refs.length - index);
+    return newRefs;
+  }
+}
@@ -0,0 +1,68 @@
+package cl.annotation.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.inject.Provider;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The class <b>DeferredValue</b> allows to inject a {@link Supplier} or a {@link Provider} of services.<br>
+ * The injection plan is compiled at injection time but the services are resolved by each call to {@link #get()}.
+ * With a requestor, the services are kept with the value injected in the requestor, so the value is reused while no
+ * service of the type has changed. Without requestor, the deferred value keeps the services of the last call and
+ * releases the ones of the previous call.
+ */
+final class DeferredValue implements Supplier<Object>, Provider<Object>
+{
+  private final ServiceRegistry serviceRegistry;
+  private final Function<DeferredValue, Object> resolver;
+  private final AtomicReference<List<ServiceReference<?>>> acquiredRefs = new AtomicReference<>(new ArrayList<>(0));
+
+  /**
+   * Constructor
+   * @param resolver the resolution of the value, given the deferred value to record the services acquired without requestor
+   */
+  DeferredValue(ServiceRegistry serviceRegistry, Function<DeferredValue, Object> resolver)
+  {
+    this.serviceRegistry = serviceRegistry;
+    this.resolver = resolver;
+  }
+
+  @Override
+  public Object get()
+  {
+    return resolver.apply(this);
+  }
+
+  /**
+   * Record the services acquired for the value returned by the current call and release the ones of the previous call
+   * @param refs one entry for each call to getService
+   */
+  void replace(List<ServiceReference<?>> refs)
+  {
+    ServiceUsages.unget(serviceRegistry, acquiredRefs.getAndSet(refs));
+  }
+
+  /**
+   * Record a service acquired later for a returned value (lazy collection).
+   * The service is released immediately if the value has already been replaced.
+   * @param refs the list given to {@link #replace(List)} for the value
+   */
+  void add(List<ServiceReference<?>> refs, ServiceReference<?> ref)
+  {
+    synchronized(refs)
+    {
+      if (acquiredRefs.get() == refs)
+      {
+        refs.add(ref);
+        return;
+      }
+    }
+    serviceRegistry.ungetService(ref);
+  }
+}
@@ -0,0 +1,125 @@
+package cl.annotation.internal;
+
+import java.util.concurrent.Executor;
+
+import org.osgi.framework.AllServiceListener;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The class <b>ExecutorTracker</b> allows to keep the highest ranking {@link Executor} service matching a filter.<br>
+ * The executor is acquired once and kept while it is used for the notifications. It is released when an executor
+ * service is registered, modified or unregistered, the highest ranking one being selected again on the next call.
+ */
+final class ExecutorTracker implements AllServiceListener
+{
+  private final ServiceRegistry serviceRegistry;
+  private final String filter;
+  private final Filter serviceFilter;
+  private boolean registered;
+  private boolean selected;
+  private ServiceReference<?> executorRef;
+  private Executor executor;
+
+  /**
+   * Constructor
+   * @param filter the LDAP filter of the executor services
+   */
+  ExecutorTracker(ServiceRegistry serviceRegistry, String filter)
+  {
+    this.serviceRegistry = serviceRegistry;
+    this.filter = filter;
+    serviceFilter = InjectionPlan.createFilter("(&(objectClass=" + Executor.class.getName() + ")" + filter + ")");
+  }
+
+  /**
+   * Return the highest ranking executor service or <code>null</code> if there is none
+   */
+  synchronized Executor getExecutor()
+  {
+    if (!registered)
+    {
+      // the listener is added first so no executor registered meanwhile is missed
+      serviceRegistry.addServiceListener(this);
+      registered = true;
+    }
+    if (!selected)
+    {
+      select();
+      selected = true;
+    }
+    return executor;
+  }
+
+  @Override
+  public void serviceChanged(ServiceEvent event)
+  {
+    ServiceReference<?> ref = event.getServiceReference();
+    synchronized(this)
+    {
+      // a modified executor may not match anymore or may have a new ranking
+      if (selected && (ref.equals(executorRef) || serviceFilter.match(ref)))
+      {
+        release();
+        selected = false;
+      }
+    }
+  }
+
+  synchronized void close()
+  {
+    if (registered)
+    {
+      serviceRegistry.removeServiceListener(this);
+      registered = false;
+    }
+    release();
+    selected = false;
+  }
+
+  private void select()
+  {
+    try
+    {
+      ServiceReference<?>[] refs = serviceRegistry.getServiceReferences(Executor.class.getName(), filter);
+      if (refs == null)
+        return;
+
+      ServiceReference<?> highestRef = null;
+      for(ServiceReference<?> ref : refs)
+      {
+        if (highestRef == null || ref.compareTo(highestRef) > 0)
+          highestRef = ref;
+      }
+
+      Executor service = (Executor) serviceRegistry.getService(highestRef);
+      if (service != null)
+      {
+        executorRef = highestRef;
+        executor = service;
+      }
+    }
+    catch(InvalidSyntaxException | IllegalStateException e)
+    {
+      // no executor
+    }
+  }
+
+  private void release()
+  {
+    if (executorRef == null)
+      return;
+    try
+    {
+      serviceRegistry.ungetService(executorRef);
+    }
+    catch(IllegalStateException e)
+    {
+      // the bundle context is no more valid
+    }
+    executorRef = null;
+    executor = null;
+  }
+}
@@ -0,0 +1,82 @@
+package cl.annotation.internal;
+
+/**
+ * The class <b>GlobMatcher</b> allows to match a text with a glob pattern.<br>
+ * The pattern may contain <code>*</code> (any sequence of characters) and <code>?</code> (any character),
+ * all the other characters are matched literally.
+ */
+final class GlobMatcher
+{
+  private static final int MAXIMUM_MATCHERS = 1024;
+  private static final BoundedCache<String, GlobMatcher> MATCHERS = new BoundedCache<>(MAXIMUM_MATCHERS);
+
+  private final String pattern;
+  private final boolean hasWildcard;
+
+  private GlobMatcher(String pattern)
+  {
+    this.pattern = pattern;
+    hasWildcard = pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0;
+  }
+
+  /**
+   * Return the shared matcher for the pattern
+   * @param pattern the glob pattern
+   */
+  static GlobMatcher of(String pattern)
+  {
+    return MATCHERS.computeIfAbsent(pattern, GlobMatcher::new);
+  }
+
+  boolean hasWildcard()
+  {
+    return hasWildcard;
+  }
+
+  boolean matches(String text)
+  {
+    if (!hasWildcard)
+      return pattern.equals(text);
+
+    // iterative matching with backtracking on the last '*'
+    int p = 0;
+    int t = 0;
+    int starIndex = -1;
+    int starText = 0;
+    int patternLength = pattern.length();
+    int textLength = text.length();
+    while(t < textLength)
+    {
+      if (p < patternLength)
+      {
+        char c = pattern.charAt(p);
+        if (c == '*')
+        {
+          starIndex = p++;
+          starText = t;
+          continue;
+        }
+        if (c == '?' || c == text.charAt(t))
+        {
+          p++;
+          t++;
+          continue;
+        }
+      }
+      if (starIndex < 0)
+        return false;
+      p = starIndex + 1;
+      t = ++starText;
+    }
+
+    while(p < patternLength && pattern.charAt(p) == '*')
+      p++;
+    return p == patternLength;
+  }
+
+  @Override
+  public String toString()
+  {
+    return pattern;
+  }
+}
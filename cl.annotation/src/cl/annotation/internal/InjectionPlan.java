@@ -0,0 +1,340 @@
+package cl.annotation.internal;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import javax.inject.Provider;
+
+import org.eclipse.e4.core.di.InjectionException;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.VersionRange;
+
+import cl.annotation.AbstractConfiguration;
+import cl.annotation.DefaultServiceReferencePredicate;
+import cl.annotation.OSGiNamed;
+
+/**
+ * The class <b>InjectionPlan</b> allows to keep all the criterion of an {@link OSGiNamed} injection point.<br>
+ * A plan is immutable and compiled once for each distinct {@link OSGiNamed} and desired {@link Type}.
+ * Only its {@link ResolutionMetrics} and its pin count change. Two plans compiled from the same {@link Key} are equal,
+ * so a plan compiled again after an eviction finds the entries of the previous one.
+ */
+final class InjectionPlan
+{
+  private static final int MAXIMUM_FILTERS = 4096;
+  private static final BoundedCache<String, Filter> FILTERS = new BoundedCache<>(MAXIMUM_FILTERS);
+  private static final int MAXIMUM_VERSION_RANGES = 1024;
+  private static final BoundedCache<String, VersionRange> VERSION_RANGES = new BoundedCache<>(MAXIMUM_VERSION_RANGES);
+
+  final boolean injectable;
+  final Class<?> desiredClass;
+  final boolean isDeferred;
+  final boolean isCollection;
+  final String typeName;
+
+  final String[] names;
+  final String[] property;
+  final String filter;
+  final boolean takeHighestRankingIfMultiple;
+  final Class<? extends Annotation>[] annotations;
+  final Class<? extends Annotation>[] notHaveAnnotations;
+  final Class<?>[] types;
+  final Class<?>[] notHaveTypes;
+  final boolean hasClassCriterion;
+  final GlobMatcher[] bundleNameMatchers;
+  final VersionRange[] bundleVersionRanges;
+  final boolean hasBundleCriterion;
+  final Supplier<? extends Predicate<ServiceReference<?>>> serviceReferencePredicateFactory;
+  final boolean asyncNotification;
+  final boolean lazyCollection;
+
+  final String generatedFilter;
+  final Filter serviceFilter;
+  final String trackingFilter;
+  final String componentNameKey;
+
+  final ResolutionMetrics metrics;
+
+  private final Key key;
+  private final AtomicInteger pins = new AtomicInteger();
+
+  private InjectionPlan(Key key)
+  {
+    this.key = key;
+    OSGiNamed osgiNamed = key.osgiNamed;
+    Type desiredType = key.desiredType;
+    metrics = new ResolutionMetrics(desiredType.getTypeName() + " " + osgiNamed);
+
+    Class<? extends AbstractConfiguration> configurationClass = osgiNamed.configuration();
+    if (configurationClass != null && configurationClass != AbstractConfiguration.class)
+      osgiNamed = InstanceCache.factory(configurationClass).get();
+
+    names = checkStringArray(osgiNamed.name());
+    property = checkStringArray(osgiNamed.property());
+    filter = osgiNamed.filter();
+    takeHighestRankingIfMultiple = osgiNamed.takeHighestRankingIfMultiple();
+    annotations = checkClassArray(osgiNamed.annotation());
+    notHaveAnnotations = checkClassArray(osgiNamed.notHaveAnnotation());
+    types = checkClassArray(osgiNamed.type());
+    notHaveTypes = checkClassArray(osgiNamed.notHaveType());
+    String[] bundleNames = checkStringArray(osgiNamed.bundleName());
+    String[] versionRanges = checkStringArray(osgiNamed.bundleVersionRange());
+    checkBundleCriterion(bundleNames, versionRanges);
+    bundleNameMatchers = new GlobMatcher[bundleNames.length];
+    for(int i = 0; i < bundleNames.length; i++)
+      bundleNameMatchers[i] = GlobMatcher.of(bundleNames[i]);
+    bundleVersionRanges = new VersionRange[versionRanges.length];
+    for(int i = 0; i < versionRanges.length; i++)
+      bundleVersionRanges[i] = createVersionRange(versionRanges[i]);
+    hasBundleCriterion = bundleNames.length != 0 || versionRanges.length != 0;
+    hasClassCriterion = annotations.length != 0 || notHaveAnnotations.length != 0 || types.length != 0 || notHaveTypes.length != 0;
+
+    Class<? extends Predicate<ServiceReference<?>>> predicateClass = osgiNamed.serviceReferencePredicate();
+    serviceReferencePredicateFactory = predicateClass == null || predicateClass == DefaultServiceReferencePredicate.class? null : InstanceCache.factory(predicateClass);
+
+    asyncNotification = osgiNamed.asyncNotification();
+    lazyCollection = osgiNamed.lazyCollection();
+
+    desiredClass = getDesiredClass(desiredType);
+
+    // take account for deferred injection (Supplier<T> or Provider<T>)
+    Type valueType = desiredType;
+    Class<?> valueClass = desiredClass;
+    isDeferred = Supplier.class.equals(desiredClass) || Provider.class.equals(desiredClass);
+    if (isDeferred)
+    {
+      valueType = getTypeArgument(desiredType);
+      valueClass = valueType == null? null : getDesiredClass(valueType);
+    }
+
+    // take account for collection
+    Type serviceType = valueType;
+    isCollection = Collection.class.equals(valueClass);
+    if (isCollection)
+      serviceType = getGenericTypeForCollection(valueType);
+
+    injectable = valueClass != null && serviceType != null;
+    typeName = serviceType == null? null : serviceType.getTypeName();
+
+    generatedFilter = PlanIndex.generateFilter(names, property, filter);
+    serviceFilter = createFilter(generatedFilter);
+    String objectClassFilter = "(objectClass=" + typeName + ")";
+    trackingFilter = generatedFilter == null? objectClassFilter : "(&" + objectClassFilter + generatedFilter + ")";
+
+    // a plan selecting one service only by its name is resolved by the ComponentNameIndex
+    boolean onlyName = names.length == 1 && property.length == 0 && (filter == null || "".equals(filter)) && !hasClassCriterion && !hasBundleCriterion;
+    componentNameKey = onlyName && injectable && !isCollection && serviceReferencePredicateFactory == null && isLiteralValue(names[0])?
+      ComponentNameIndex.key(typeName, names[0]) : null;
+  }
+
+  /**
+   * Compile a new plan
+   * @param key the qualifier and the desired type of the injection point
+   */
+  static InjectionPlan compile(Key key)
+  {
+    return new InjectionPlan(key);
+  }
+
+  /**
+   * Keep the plan in the cache of the supplier while it is tracked or its services are used,
+   * each call must be balanced by {@link #unpin()}
+   */
+  void pin()
+  {
+    pins.incrementAndGet();
+  }
+
+  void unpin()
+  {
+    pins.decrementAndGet();
+  }
+
+  boolean isPinned()
+  {
+    return pins.get() > 0;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return key.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj)
+      return true;
+    if (!(obj instanceof InjectionPlan))
+      return false;
+    return key.equals(((InjectionPlan) obj).key);
+  }
+
+  /**
+   * Parse a criterion read in a {@link PlanIndex} and keep it in the caches used to compile the plans
+   * @param kind {@link PlanIndex#FILTER}, {@link PlanIndex#VERSION_RANGE} or {@link PlanIndex#BUNDLE_NAME}
+   */
+  static void precompile(String kind, String value)
+  {
+    try
+    {
+      if (PlanIndex.FILTER.equals(kind))
+        createFilter(value);
+      else if (PlanIndex.VERSION_RANGE.equals(kind))
+        createVersionRange(value);
+      else if (PlanIndex.BUNDLE_NAME.equals(kind))
+        GlobMatcher.of(value);
+    }
+    catch(InjectionException e)
+    {
+      // the error is reported by the injection
+    }
+  }
+
+  static Filter createFilter(String filter)
+  {
+    if (filter == null)
+      return null;
+    return FILTERS.computeIfAbsent(filter, f -> {
+      try
+      {
+        return FrameworkUtil.createFilter(f);
+      }
+      catch(InvalidSyntaxException e)
+      {
+        throw new InjectionException(e);
+      }
+    });
+  }
+
+  private static void checkBundleCriterion(String[] bundleNames, String[] bundleVersionRanges)
+  {
+    String error = PlanIndex.checkBundleCriterion(bundleNames.length, bundleVersionRanges.length);
+    if (error != null)
+      throw new InjectionException(error);
+  }
+
+  private static VersionRange createVersionRange(String versionRange)
+  {
+    return VERSION_RANGES.computeIfAbsent(versionRange, v -> {
+      try
+      {
+        return new VersionRange(v);
+      }
+      catch(IllegalArgumentException iae)
+      {
+        throw new InjectionException(iae);
+      }
+    });
+  }
+
+  private static Class<?> getDesiredClass(Type desiredType)
+  {
+    if (desiredType instanceof Class<?>)
+      return (Class<?>) desiredType;
+    if (desiredType instanceof ParameterizedType)
+    {
+      Type rawType = ((ParameterizedType) desiredType).getRawType();
+      if (rawType instanceof Class<?>)
+        return (Class<?>) rawType;
+    }
+    return null;
+  }
+
+  private static Type getGenericTypeForCollection(Type desiredType)
+  {
+    if (desiredType instanceof Class<?>)
+      return desiredType;
+    if (desiredType instanceof ParameterizedType && ((ParameterizedType) desiredType).getActualTypeArguments()[0] instanceof ParameterizedType)
+      return null;
+    return getTypeArgument(desiredType);
+  }
+
+  private static Type getTypeArgument(Type desiredType)
+  {
+    if (desiredType instanceof ParameterizedType)
+    {
+      Type rawType = ((ParameterizedType) desiredType).getActualTypeArguments()[0];
+      if (rawType instanceof Class<?> || rawType instanceof ParameterizedType)
+        return rawType;
+      if (rawType instanceof WildcardType)
+      {
+        WildcardType wildcardType = (WildcardType) rawType;
+        if (wildcardType.getUpperBounds().length == 1)
+          return wildcardType.getUpperBounds()[0];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Return true if the value of an LDAP equality is matched only by the same string
+   */
+  private static boolean isLiteralValue(String value)
+  {
+    if (value.isEmpty() || !value.trim().equals(value))
+      return false;
+    for(int i = 0; i < value.length(); i++)
+    {
+      char c = value.charAt(i);
+      if (c == '*' || c == '\\' || c == '(' || c == ')')
+        return false;
+    }
+    return true;
+  }
+
+  private static String[] checkStringArray(String[] values)
+  {
+    return values == null? new String[0] : values;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> Class<? extends T>[] checkClassArray(Class<? extends T>[] values)
+  {
+    return values == null? (Class<? extends T>[]) new Class<?>[0] : values;
+  }
+
+  /**
+   * The class <b>Key</b> allows to identify a plan in the cache.<br>
+   */
+  static final class Key
+  {
+    final OSGiNamed osgiNamed;
+    final Type desiredType;
+    private final int hash;
+
+    Key(OSGiNamed osgiNamed, Type desiredType)
+    {
+      this.osgiNamed = osgiNamed;
+      this.desiredType = desiredType;
+      hash = 31 * osgiNamed.hashCode() + desiredType.hashCode();
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (this == obj)
+        return true;
+      if (!(obj instanceof Key))
+        return false;
+      Key other = (Key) obj;
+      return hash == other.hash && osgiNamed.equals(other.osgiNamed) && desiredType.equals(other.desiredType);
+    }
+  }
+}
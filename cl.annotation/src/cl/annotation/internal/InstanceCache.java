@@ -0,0 +1,81 @@
+package cl.annotation.internal;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.function.Supplier;
+
+import javax.inject.Singleton;
+
+import org.eclipse.e4.core.di.InjectionException;
+
+/**
+ * The class <b>InstanceCache</b> allows to create the instances of the classes given in {@link cl.annotation.OSGiNamed}
+ * (configuration and serviceReferencePredicate).<br>
+ * A class annotated with {@link Singleton} is instantiated once and the instance is shared, so it must be stateless.
+ * Otherwise a new instance is created for each call with a constructor resolved once: a predicate is created for each
+ * resolution, a configuration only when its injection point is compiled.
+ */
+final class InstanceCache
+{
+  private static final int MAXIMUM_FACTORIES = 1024;
+  private static final BoundedCache<Class<?>, Supplier<?>> FACTORIES = new BoundedCache<>(MAXIMUM_FACTORIES);
+
+  private InstanceCache()
+  {
+  }
+
+  /**
+   * Return the factory for the class
+   * @param type the class to instantiate (must have a constructor without parameter)
+   */
+  @SuppressWarnings("unchecked")
+  static <T> Supplier<T> factory(Class<T> type)
+  {
+    return (Supplier<T>) FACTORIES.computeIfAbsent(type, InstanceCache::createFactory);
+  }
+
+  private static <T> Supplier<T> createFactory(Class<T> type)
+  {
+    ConstructorFactory<T> constructorFactory = new ConstructorFactory<>(type);
+    if (type.isAnnotationPresent(Singleton.class))
+    {
+      T instance = constructorFactory.get();
+      return () -> instance;
+    }
+    return constructorFactory;
+  }
+
+  /**
+   * The class <b>ConstructorFactory</b> allows to create a new instance with a prebuilt constructor.<br>
+   */
+  private static final class ConstructorFactory<T> implements Supplier<T>
+  {
+    private final Constructor<T> constructor;
+
+    ConstructorFactory(Class<T> type)
+    {
+      try
+      {
+        constructor = type.getDeclaredConstructor();
+        constructor.setAccessible(true);
+      }
+      catch(NoSuchMethodException | SecurityException e)
+      {
+        throw new InjectionException(e);
+      }
+    }
+
+    @Override
+    public T get()
+    {
+      try
+      {
+        return constructor.newInstance();
+      }
+      catch(InstantiationException | IllegalAccessException | InvocationTargetException e)
+      {
+        throw new InjectionException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package cl.annotation.internal;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The class <b>LazyServiceCollection</b> allows to inject a collection whose services are fetched on first access.<br>
+ * The service references are fixed when the collection is created, so {@link #size()} and {@link #isEmpty()}
+ * never fetch a service. An element is <code>null</code> if its service has been unregistered before its first access.
+ */
+final class LazyServiceCollection extends AbstractList<Object> implements RandomAccess
+{
+  private final ServiceReference<?>[] refs;
+  private final AtomicReferenceArray<Object> services;
+  private final Function<ServiceReference<?>, Object> fetcher;
+
+  /**
+   * Constructor
+   * @param refs the service references, in injection order
+   * @param fetchedServices the services already fetched (same order, <code>null</code> if not fetched)
+   * @param fetcher fetch the service of a reference
+   */
+  LazyServiceCollection(List<ServiceReference<?>> refs, Object[] fetchedServices, Function<ServiceReference<?>, Object> fetcher)
+  {
+    this.refs = refs.toArray(new ServiceReference<?>[refs.size()]);
+    this.services = new AtomicReferenceArray<>(fetchedServices);
+    this.fetcher = fetcher;
+  }
+
+  @Override
+  public Object get(int index)
+  {
+    Object service = services.get(index);
+    if (service != null)
+      return service;
+
+    synchronized(this)
+    {
+      service = services.get(index);
+      if (service == null)
+      {
+        service = fetcher.apply(refs[index]);
+        services.set(index, service);
+      }
+      return service;
+    }
+  }
+
+  @Override
+  public int size()
+  {
+    return refs.length;
+  }
+}
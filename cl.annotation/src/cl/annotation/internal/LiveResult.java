@@ -0,0 +1,111 @@
+package cl.annotation.internal;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The class <b>LiveResult</b> allows to maintain the service references injected by a tracked collection plan
+ * without serviceReferencePredicate (a predicate can change its answer without service event).<br>
+ * The references are sorted by 'service.ranking' descending then 'service.id' ascending and updated from
+ * the service events in O(log n), so a re-injection does not query the registry again.
+ */
+final class LiveResult
+{
+  /** highest ranking first, then lowest service.id */
+  static final Comparator<ServiceReference<?>> RANKING_ORDER = (ref1, ref2) -> ref2.compareTo(ref1);
+
+  final InjectionPlan plan;
+  private int users;
+  private boolean initialized;
+  private long eventCount;
+  private RankedReferences refs;
+  private ServiceEvent lastEvent;
+  private boolean lastChanged;
+
+  LiveResult(InjectionPlan plan)
+  {
+    this.plan = plan;
+  }
+
+  synchronized void retain()
+  {
+    users++;
+  }
+
+  /**
+   * @return <code>true</code> if the result has no more user
+   */
+  synchronized boolean release()
+  {
+    return --users <= 0;
+  }
+
+  /**
+   * Return the sorted references or <code>null</code> if the result is not initialized
+   */
+  synchronized ServiceReference<?>[] snapshot()
+  {
+    return initialized? refs.toArray() : null;
+  }
+
+  /**
+   * Start an initialization, the returned value must be given to {@link #initialize(long, List)}
+   */
+  synchronized long beginInitialization()
+  {
+    return eventCount;
+  }
+
+  /**
+   * Initialize the result with the references resolved by a registry query.
+   * The result stays uninitialized if an event has been received during the query.
+   * @param expectedEventCount the value returned by {@link #beginInitialization()}
+   * @param resolvedRefs the references sorted with {@link #RANKING_ORDER}
+   */
+  synchronized void initialize(long expectedEventCount, List<ServiceReference<?>> resolvedRefs)
+  {
+    if (initialized || eventCount != expectedEventCount)
+      return;
+    refs = new RankedReferences(resolvedRefs.toArray(new ServiceReference<?>[resolvedRefs.size()]));
+    initialized = true;
+  }
+
+  /**
+   * Update the result with a service event, the same event is applied only once
+   * @param event the service event
+   * @param accepter check if a reference matches all the criterion of the plan
+   * @return <code>true</code> if the injected references have changed
+   */
+  boolean update(ServiceEvent event, Predicate<ServiceReference<?>> accepter)
+  {
+    synchronized(this)
+    {
+      if (event == lastEvent)
+        return lastChanged;
+    }
+
+    ServiceReference<?> ref = event.getServiceReference();
+    boolean accepted = event.getType() != ServiceEvent.UNREGISTERING && accepter.test(ref);
+
+    synchronized(this)
+    {
+      if (event == lastEvent)
+        return lastChanged;
+
+      eventCount++;
+      lastEvent = event;
+      if (!initialized)
+      {
+        lastChanged = true;
+        return true;
+      }
+
+      lastChanged = accepted? refs.put(ref) : refs.remove(ref);
+      return lastChanged;
+    }
+  }
+}
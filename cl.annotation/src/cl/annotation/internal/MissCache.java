@@ -0,0 +1,108 @@
+package cl.annotation.internal;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The class <b>MissCache</b> allows to remember the single-valued plans resolved without any service.<br>
+ * A miss is forgotten only when a service that could match the plan (same <code>objectClass</code> and filter)
+ * is registered or modified, so re-injecting an absent optional service costs one hash lookup instead of a query.
+ * The plans with a serviceReference predicate are not cached, their answer can change without service event.
+ * The cache is bounded: when it is full, some misses are forgotten, their plans are then queried again.
+ */
+final class MissCache
+{
+  private static final int MAXIMUM_MISSES = 4096;
+
+  private final Set<InjectionPlan> misses = ConcurrentHashMap.newKeySet();
+  private final Map<String, Set<InjectionPlan>> missesByObjectClass = new ConcurrentHashMap<>();
+  private final AtomicLong eventCount = new AtomicLong();
+
+  static boolean isCacheable(InjectionPlan plan)
+  {
+    return !plan.isCollection && plan.serviceReferencePredicateFactory == null;
+  }
+
+  boolean contains(InjectionPlan plan)
+  {
+    return misses.contains(plan);
+  }
+
+  /**
+   * Start a query, the returned value must be given to {@link #add(InjectionPlan, long)}
+   */
+  long beginQuery()
+  {
+    return eventCount.get();
+  }
+
+  /**
+   * Remember a miss, it is forgotten at once if a service has been registered or modified during the query
+   * @param expectedEventCount the value returned by {@link #beginQuery()}
+   */
+  void add(InjectionPlan plan, long expectedEventCount)
+  {
+    if (misses.size() >= MAXIMUM_MISSES)
+      evict();
+    missesByObjectClass.computeIfAbsent(plan.typeName, oc -> ConcurrentHashMap.newKeySet()).add(plan);
+    misses.add(plan);
+    if (eventCount.get() != expectedEventCount)
+      remove(plan);
+  }
+
+  /**
+   * Forget the misses that the registered or modified service could match
+   */
+  void update(ServiceEvent event)
+  {
+    if (event.getType() != ServiceEvent.REGISTERED && event.getType() != ServiceEvent.MODIFIED)
+      return;
+    eventCount.incrementAndGet();
+
+    ServiceReference<?> ref = event.getServiceReference();
+    Object objectClasses = ref.getProperty(Constants.OBJECTCLASS);
+    if (!(objectClasses instanceof String[]))
+      return;
+    for(String objectClass : (String[]) objectClasses)
+    {
+      Set<InjectionPlan> plans = missesByObjectClass.get(objectClass);
+      if (plans == null)
+        continue;
+      for(InjectionPlan plan : plans)
+      {
+        if (plan.serviceFilter == null || plan.serviceFilter.match(ref))
+          remove(plan);
+      }
+    }
+  }
+
+  void clear()
+  {
+    misses.clear();
+    missesByObjectClass.clear();
+  }
+
+  private void evict()
+  {
+    // remove a quarter of the misses to amortize the eviction cost
+    int toRemove = MAXIMUM_MISSES / 4;
+    Iterator<InjectionPlan> iterator = misses.iterator();
+    while(toRemove-- > 0 && iterator.hasNext())
+      remove(iterator.next());
+  }
+
+  private void remove(InjectionPlan plan)
+  {
+    Set<InjectionPlan> plans = missesByObjectClass.get(plan.typeName);
+    if (plans != null)
+      plans.remove(plan);
+    misses.remove(plan);
+  }
+}
@@ -1,20 +1,29 @@
 package cl.annotation.internal;
 
+import java.io.IOException;
 import java.lang.annotation.Annotation;
-import java.lang.reflect.ParameterizedType;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Type;
-import java.lang.reflect.WildcardType;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Predicate;
-import java.util.regex.Pattern;
-import java.util.stream.Stream;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.eclipse.e4.core.di.IInjector;
 import org.eclipse.e4.core.di.InjectionException;
@@ -22,450 +31,638 @@ import org.eclipse.e4.core.di.annotations.Optional;
 import org.eclipse.e4.core.di.suppliers.ExtendedObjectSupplier;
 import org.eclipse.e4.core.di.suppliers.IObjectDescriptor;
 import org.eclipse.e4.core.di.suppliers.IRequestor;
-import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkUtil;
-import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceReference;
-import org.osgi.framework.VersionRange;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 
-import cl.annotation.AbstractConfiguration;
-import cl.annotation.DefaultServiceReferencePredicate;
 import cl.annotation.OSGiNamed;
+import cl.annotation.OSGiNamedMetrics;
+import cl.annotation.OSGiNamedNotifications;
 
 /**
  * The class <b>OSGiNamedObjectSupplier</b> allows to select object injected.<br>
  */
-@Component(service = ExtendedObjectSupplier.class,
+@Component(service = {ExtendedObjectSupplier.class, OSGiNamedNotifications.class, OSGiNamedMetrics.class},
   property = ExtendedObjectSupplier.SERVICE_CONTEXT_KEY + "=cl.annotation.OSGiNamed")
-public final class OSGiNamedObjectSupplier extends ExtendedObjectSupplier
+public final class OSGiNamedObjectSupplier extends ExtendedObjectSupplier implements OSGiNamedNotifications, OSGiNamedMetrics
 {
-  private static final Bundle bundle = FrameworkUtil.getBundle(OSGiNamedObjectSupplier.class);
-  private static final BundleContext bundleContext = bundle.getBundleContext();
+  private static final int MAXIMUM_PLANS = 4096;
+  private static final int MAXIMUM_IMPLEMENTATION_CLASSES = 4096;
+  private static final String EXECUTOR_FILTER = "(" + EXECUTOR_PROPERTY + "=true)";
 
+  private final ServiceRegistry serviceRegistry;
   private final Map<Class<?>, Set<IRequestor>> listeners = new ConcurrentHashMap<>();
-  private final Map<IRequestor, ServiceListener> serviceListeners = new ConcurrentHashMap<>();
+  private final Map<IRequestor, ServiceEventDispatcher.Subscription> subscriptions = new ConcurrentHashMap<>();
+  private final boolean asyncNotification;
+  private final SerialRequestorExecutor asyncExecutor = new SerialRequestorExecutor(this::getNotificationExecutor, this::reinject);
+  private final RequestorNotifier notifier;
+  private final RankingIndex rankingIndex;
+  private final PropertyIndex propertyIndex;
+  private final ComponentNameIndex componentNameIndex;
+  private final MissCache missCache = new MissCache();
+  private final BundleIndex bundleIndex;
+  private final ServiceEventDispatcher dispatcher;
+  private final ExecutorTracker executorTracker;
+  private ExecutorService defaultExecutor;
+  private boolean mbeanRegistered;
+  private final BoundedCache<InjectionPlan.Key, InjectionPlan> plans = new BoundedCache<>(MAXIMUM_PLANS, InjectionPlan::isPinned);
+  private final Map<InjectionPlan, LiveResult> liveResults = new ConcurrentHashMap<>();
+  private final ServiceUsages serviceUsages;
+  private final BoundedCache<Long, Class<?>> implementationClasses = new BoundedCache<>(MAXIMUM_IMPLEMENTATION_CLASSES);
+
+  /**
+   * Constructor used by declarative services
+   */
+  public OSGiNamedObjectSupplier()
+  {
+    this(FrameworkUtil.getBundle(OSGiNamedObjectSupplier.class).getBundleContext());
+  }
+
+  /**
+   * Constructor
+   * @param bundleContext the context used to access the service registry
+   */
+  public OSGiNamedObjectSupplier(BundleContext bundleContext)
+  {
+    this(new BundleContextServiceRegistry(bundleContext));
+  }
+
+  /**
+   * Constructor
+   * @param serviceRegistry the service registry (an in-memory registry for the benchmarks and the headless tests)
+   */
+  public OSGiNamedObjectSupplier(ServiceRegistry serviceRegistry)
+  {
+    this.serviceRegistry = serviceRegistry;
+    asyncNotification = Boolean.parseBoolean(serviceRegistry.getProperty(ASYNC_PROPERTY));
+    long quietWindow = getLongProperty(QUIET_WINDOW_PROPERTY, 0);
+    notifier = new RequestorNotifier(this::notifyRequestor, quietWindow, getLongProperty(MAXIMUM_DELAY_PROPERTY, 10 * quietWindow));
+    rankingIndex = new RankingIndex(serviceRegistry);
+    propertyIndex = new PropertyIndex(rankingIndex, serviceRegistry.getProperty(PropertyIndex.INDEXED_PROPERTIES_PROPERTY));
+    componentNameIndex = new ComponentNameIndex(rankingIndex);
+    bundleIndex = new BundleIndex(serviceRegistry);
+    dispatcher = new ServiceEventDispatcher(serviceRegistry, rankingIndex, propertyIndex, componentNameIndex, missCache, notifier::notify,
+      this::isResultChanged);
+    serviceUsages = new ServiceUsages(serviceRegistry);
+    executorTracker = new ExecutorTracker(serviceRegistry, EXECUTOR_FILTER);
+  }
 
   @Override
   public Object get(IObjectDescriptor descriptor, IRequestor requestor, boolean track, boolean group)
   {
     OSGiNamed osgiNamed = descriptor.getQualifier(OSGiNamed.class);
-
-    Class<? extends AbstractConfiguration> configurationClass = osgiNamed.configuration();
-    if (configurationClass != null && configurationClass != AbstractConfiguration.class)
-    {
-      try
-      {
-        osgiNamed = configurationClass.newInstance();
-      }
-      catch(InstantiationException | IllegalAccessException e)
-      {
-        return new InjectionException(e);
-      }
-    }
-
-    String[] names = checkStringArray(osgiNamed.name());
-    String[] property = checkStringArray(osgiNamed.property());
-    String filter = osgiNamed.filter();
-    boolean takeHighestRankingIfMultiple = osgiNamed.takeHighestRankingIfMultiple();
-    Class<? extends Annotation>[] annotations = checkClassArray(osgiNamed.annotation());
-    Class<? extends Annotation>[] notHaveAnnotations = checkClassArray(osgiNamed.notHaveAnnotation());
-    Class<?>[] types = checkClassArray(osgiNamed.type());
-    Class<?>[] notHaveTypes = checkClassArray(osgiNamed.notHaveType());
-    String[] bundleNames = checkStringArray(osgiNamed.bundleName());
-    String[] bundleVersionRanges = checkStringArray(osgiNamed.bundleVersionRange());
-    Class<? extends Predicate<ServiceReference<?>>> serviceReferencePredicateClass = osgiNamed.serviceReferencePredicate();
-
     Type desiredType = descriptor.getDesiredType();
-    Class<?> desiredClass = getDesiredClass(desiredType);
-    if (desiredClass == null)
+
+    InjectionPlan plan = plans.computeIfAbsent(new InjectionPlan.Key(osgiNamed, desiredType), InjectionPlan::compile);
+    if (!plan.injectable)
       return IInjector.NOT_A_VALUE;
 
-    // take account for collection
-    boolean isCollection = false;
-    if (Collection.class.equals(desiredClass))
+    // the deferred value resolves the services on each call, it never needs to be re-injected
+    if (plan.isDeferred)
     {
-      isCollection = true;
-      Type genericType = getGenericTypeForCollection(desiredType);
-      if (genericType == null)
-        return IInjector.NOT_A_VALUE;
-      desiredType = genericType;
+      if (requestor != null)
+        untrack(requestor, plan);
+      return new DeferredValue(serviceRegistry, deferredValue -> {
+        // without requestor the deferred value keeps the services of its last call
+        Object value = resolveAndMeasure(descriptor, requestor, false, plan, requestor == null? deferredValue : null);
+        if (value == IInjector.NOT_A_VALUE)
+          throw new InjectionException("Unable to process \"" + requestor + "\": no value was found for the argument \"" + descriptor + "\"");
+        return value;
+      });
     }
 
-    String typeName = desiredType.getTypeName();
-    String generatedFilter = generateFilter(names, property, filter);
-
-    ServiceListener serviceListener = requestor == null? null : serviceListeners.get(requestor);
-    if (track && requestor != null)
+    if (requestor != null)
     {
-      addListener(desiredClass, requestor);
-
-      if (serviceListener != null)
-        bundleContext.removeServiceListener(serviceListener);
-
-      try
-      {
-        String trackingFilter = "(objectClass=" + typeName + ")";
-        if (generatedFilter != null)
-          trackingFilter = "(&" + trackingFilter + generatedFilter + ")";
+      if (track)
+        track(requestor, plan);
+      else
+        untrack(requestor, plan);
+    }
 
-        serviceListener = event -> notifyRequestor(requestor);
-        serviceListeners.put(requestor, serviceListener);
+    return resolveAndMeasure(descriptor, requestor, track, plan, null);
+  }
 
-        // add tracking
-        bundleContext.addServiceListener(serviceListener, trackingFilter);
-      }
-      catch(Exception e)
-      {
-        return new InjectionException(e);
-      }
+  private Object resolveAndMeasure(IObjectDescriptor descriptor, IRequestor requestor, boolean track, InjectionPlan plan, DeferredValue deferredValue)
+  {
+    long start = System.nanoTime();
+    try
+    {
+      return resolve(descriptor, requestor, track, plan, deferredValue);
     }
-    else if (serviceListener != null && requestor != null)
+    finally
     {
-      removeListener(desiredClass, requestor);
-
-      bundleContext.removeServiceListener(serviceListener);
-      serviceListeners.remove(requestor);
+      plan.metrics.resolved(System.nanoTime() - start);
     }
+  }
 
-    // get all service references
-    ServiceReference<?>[] refs = null;
-    try
+  /**
+   * Resolve the value of the injection point
+   * @param deferredValue the deferred value keeping the acquired services when there is no requestor or <code>null</code>
+   */
+  private Object resolve(IObjectDescriptor descriptor, IRequestor requestor, boolean track, InjectionPlan plan, DeferredValue deferredValue)
+  {
+    // the value injected in the requestor is reused while no service of the type has changed
+    // (a predicate can change its answer without service event)
+    long generation = 0;
+    if (requestor != null && plan.serviceReferencePredicateFactory == null)
     {
-      refs = bundleContext.getAllServiceReferences(typeName, generatedFilter);
+      // the listener must count the events before the generation is read
+      dispatcher.ensureRegistered();
+      generation = dispatcher.getGeneration(plan.typeName);
+      ServiceUsages.Usage usage = serviceUsages.get(requestor, plan);
+      if (usage != null && usage.generation == generation && (!track || isResolved(requestor, plan)))
+        return usage.value;
+    }
 
-      // filter serviceReferences
-      if (serviceReferencePredicateClass != null && serviceReferencePredicateClass != DefaultServiceReferencePredicate.class)
-      {
-        Predicate<ServiceReference<?>> serviceReferencePredicate = serviceReferencePredicateClass.newInstance();
-        refs = Stream.of(refs).filter(serviceReferencePredicate).toArray(ServiceReference<?>[]::new);
-      }
+    if (plan.componentNameKey != null)
+    {
+      // the listener must update the index before it is queried
+      dispatcher.ensureRegistered();
+      ServiceReference<?>[] refs = componentNameIndex.get(plan.typeName, plan.componentNameKey);
+      if (refs.length <= 1 || plan.takeHighestRankingIfMultiple)
+        return resolveByComponentName(descriptor, requestor, track, plan, refs.length == 0? null : refs[0], generation, deferredValue);
+    }
 
+    // get all service references
+    Status status;
+    // a predicate can change its answer without service event, so its result is not maintained
+    LiveResult liveResult = track && requestor != null && hasLiveResult(plan)? liveResults.get(plan) : null;
+    ServiceReference<?>[] snapshot = liveResult == null? null : liveResult.snapshot();
+    if (snapshot != null)
+    {
+      // the maintained references already match all the criterion
+      status = new Status(snapshot, plan.metrics);
     }
-    catch(Exception e)
+    else if (missCache.contains(plan))
     {
-      throw new InjectionException(e);
+      // no service registered or modified since the last resolution can match
+      status = new Status(null, plan.metrics);
+    }
+    else if (MissCache.isCacheable(plan))
+    {
+      long eventCount = missCache.beginQuery();
+      status = query(plan, null);
+      if (status.refs.isEmpty())
+        missCache.add(plan, eventCount);
+    }
+    else
+    {
+      long eventCount = liveResult == null? 0 : liveResult.beginInitialization();
+      status = query(plan, null);
+      if (liveResult != null)
+        liveResult.initialize(eventCount, status.refs);
     }
 
-    //
-    Status status = new Status();
-    status.refs = refs;
-
-    status.filterBundles(bundleNames, bundleVersionRanges);
-    status.filterAnnotations(annotations);
-    status.filterNotHaveAnnotations(notHaveAnnotations);
-    status.filterTypes(types);
-    status.filterNotHaveTypes(notHaveTypes);
-
-    //
-    if (isCollection)
-      return status.getServices();
+    // remember the result to notify the requestor only when it changes
+    if (track && requestor != null)
+    {
+      ServiceEventDispatcher.Subscription subscription = subscriptions.get(requestor);
+      if (subscription != null)
+        subscription.resolvedServiceIds.put(plan, status.getResolvedServiceIds(plan));
+    }
 
     //
+    Object value;
+    List<ServiceReference<?>> injectedRefs;
     int serviceCount = status.serviceCount();
-    if (serviceCount == 0)
+    if (plan.isCollection)
     {
-      if (descriptor.hasQualifier(Optional.class))
-        return null;
-      return IInjector.NOT_A_VALUE;
+      // the lazy collection is created when the acquired services are known
+      value = plan.lazyCollection? null : status.getServices();
+      injectedRefs = status.refs;
     }
-
-    //
-    if (takeHighestRankingIfMultiple || serviceCount == 1)
+    else if (serviceCount == 0)
     {
-      Object service = status.getFirstService();
-      return service;
+      value = descriptor.hasQualifier(Optional.class)? null : IInjector.NOT_A_VALUE;
+      injectedRefs = Collections.emptyList();
+    }
+    else if (plan.takeHighestRankingIfMultiple || serviceCount == 1)
+    {
+      value = status.getFirstService();
+      injectedRefs = status.refs.subList(0, 1);
+    }
+    else
+    {
+      status.releaseServices(Collections.emptyList());
+      throw new InjectionException("Unable to process \"" + requestor + "\": " + serviceCount + " values were found for the argument \"" + descriptor + "\"");
     }
 
-    throw new InjectionException("Unable to process \"" + requestor + "\": " + serviceCount + " values were found for the argument \"" + descriptor + "\"");
+    // the services fetched only to read their class are released, the injected ones are released
+    // when the value of the requestor or of the deferred value is replaced (otherwise the caller keeps them)
+    List<ServiceReference<?>> acquiredRefs = status.releaseServices(injectedRefs);
+    if (plan.isCollection && plan.lazyCollection)
+      value = status.getLazyServices(requestor, plan, acquiredRefs, deferredValue);
+    if (requestor != null)
+      serviceUsages.replace(requestor, plan, acquiredRefs, serviceCount == 0 || value == null? 0 : generation, value);
+    else if (deferredValue != null)
+      deferredValue.replace(acquiredRefs);
+    return value;
   }
 
-  private static String generateFilter(String[] names, String[] property, String filter)
+  /**
+   * Check if the services injected by the plan are already known by the subscription of the requestor
+   */
+  private boolean isResolved(IRequestor requestor, InjectionPlan plan)
   {
-    boolean multipleFilter = false;
+    ServiceEventDispatcher.Subscription subscription = subscriptions.get(requestor);
+    return subscription != null && subscription.resolvedServiceIds.containsKey(plan);
+  }
 
-    String generatedFilter = null;
-    if (names.length != 0)
+  /**
+   * Resolve the value of an injection point selecting one service only by its component name.
+   * The reference given by the {@link ComponentNameIndex} matches all the criterion, so it is neither filtered nor fetched twice.
+   * @param ref the reference of the highest ranking service with the name or <code>null</code>
+   * @param generation the generation of the type read before the lookup
+   * @param deferredValue the deferred value keeping the acquired service when there is no requestor or <code>null</code>
+   */
+  private Object resolveByComponentName(IObjectDescriptor descriptor, IRequestor requestor, boolean track, InjectionPlan plan, ServiceReference<?> ref,
+    long generation, DeferredValue deferredValue)
+  {
+    // remember the result to notify the requestor only when it changes
+    if (track && requestor != null)
     {
-      generatedFilter = "";
-      for(String name : names)
-        generatedFilter += "(component.name=" + name + ")";
-      if (names.length > 1)
-        generatedFilter = "(|" + generatedFilter + ")";
+      ServiceEventDispatcher.Subscription subscription = subscriptions.get(requestor);
+      if (subscription != null)
+        subscription.resolvedServiceIds.put(plan, ref == null? new long[0] : new long[]{(Long) ref.getProperty(Constants.SERVICE_ID)});
     }
 
-    if (property.length != 0)
+    if (ref == null)
     {
-      if (generatedFilter != null || property.length > 1)
-        multipleFilter = true;
-      if (generatedFilter == null)
-        generatedFilter = "";
-      for(String p : property)
-        generatedFilter += "(" + p + ")";
+      if (requestor != null)
+        serviceUsages.replace(requestor, plan, new ArrayList<>(0), 0, null);
+      else if (deferredValue != null)
+        deferredValue.replace(new ArrayList<>(0));
+      return descriptor.hasQualifier(Optional.class)? null : IInjector.NOT_A_VALUE;
     }
 
-    if (filter != null && !"".equals(filter))
+    plan.metrics.scanned(1);
+    plan.metrics.gotService();
+    Object value = serviceRegistry.getService(ref);
+    if (requestor != null || deferredValue != null)
     {
-      if (generatedFilter != null)
-        multipleFilter = true;
+      List<ServiceReference<?>> acquiredRefs = new ArrayList<>(1);
+      if (value != null)
+        acquiredRefs.add(ref);
+      if (requestor != null)
+        serviceUsages.replace(requestor, plan, acquiredRefs, value == null? 0 : generation, value);
       else
-        generatedFilter = "";
-      generatedFilter += filter;
+        deferredValue.replace(acquiredRefs);
     }
-
-    if (multipleFilter)
-      generatedFilter = "(&" + generatedFilter + ")";
-    return generatedFilter;
+    return value;
   }
 
+  /**
+   * The class <b>Status</b> allows to filter the service references of one resolution.<br>
+   * Each candidate is checked in one pass and rejected by the first criterion not matched.
+   * The filters use the implementation class of the services, so only the services kept are fetched.
+   */
   private final class Status
   {
-    ServiceReference<?>[] refs;
-    List<Object> services = null;
+    final List<ServiceReference<?>> refs;
+    final Map<ServiceReference<?>, Object> services = new HashMap<>();
+    private final ResolutionMetrics metrics;
+    private final int[] rejectedCounts = new int[ResolutionMetrics.STAGES.length];
+    private Predicate<ServiceReference<?>> serviceReferencePredicate;
+    private Set<Long> bundleIds;
+    private PropertyIndex.Result indexResult;
+
+    Status(ServiceReference<?>[] refs, ResolutionMetrics metrics)
+    {
+      this.metrics = metrics;
+      this.refs = refs == null? new ArrayList<>(0) : new ArrayList<>(Arrays.asList(refs));
+    }
 
-    void filterAnnotations(Class<? extends Annotation>[] annotations)
+    /**
+     * Keep the first candidate accepted by all the criterion of the plan
+     * @param excludedRef a candidate to ignore or <code>null</code>
+     */
+    void filterFirst(InjectionPlan plan, ServiceReference<?>[] candidates, ServiceReference<?> excludedRef)
     {
-      if (annotations.length != 0)
+      int scannedCount = 0;
+      for(ServiceReference<?> candidate : candidates)
       {
-        fillAllServices();
-
-        for(int s = services.size() - 1; s >= 0; s--)
+        if (candidate.equals(excludedRef))
+          continue;
+        scannedCount++;
+        if (accepts(plan, candidate))
         {
-          Object service = services.get(s);
-          Class<?> serviceClass = service.getClass();
-
-          // check all annotations
-          for(int a = 0; a < annotations.length; a++)
-          {
-            // if annotation not found then remove service
-            if (serviceClass.getAnnotation(annotations[a]) == null)
-            {
-              services.remove(s);
-              break;
-            }
-          }
+          refs.add(candidate);
+          break;
         }
       }
+      recordMetrics(scannedCount);
     }
 
-    void filterNotHaveAnnotations(Class<? extends Annotation>[] notHaveAnnotations)
+    /**
+     * Keep the references accepted by all the criterion of the plan, in one pass
+     */
+    void filter(InjectionPlan plan)
     {
-      if (notHaveAnnotations.length != 0)
+      int count = refs.size();
+      int keptCount = 0;
+      for(int s = 0; s < count; s++)
       {
-        fillAllServices();
-
-        for(int s = services.size() - 1; s >= 0; s--)
-        {
-          Object service = services.get(s);
-          Class<?> serviceClass = service.getClass();
-
-          // check all annotations
-          for(int a = 0; a < notHaveAnnotations.length; a++)
-          {
-            // if annotation found then remove service
-            if (serviceClass.getAnnotation(notHaveAnnotations[a]) != null)
-            {
-              services.remove(s);
-              break;
-            }
-          }
-        }
+        ServiceReference<?> ref = refs.get(s);
+        if (accepts(plan, ref))
+          refs.set(keptCount++, ref);
       }
+      refs.subList(keptCount, count).clear();
+      recordMetrics(count);
     }
 
-    void filterTypes(Class<?>[] types)
+    private void recordMetrics(int scannedCount)
     {
-      if (types.length != 0)
+      metrics.scanned(scannedCount);
+      for(int stage = 0; stage < rejectedCounts.length; stage++)
       {
-        fillAllServices();
-
-        for(int s = services.size() - 1; s >= 0; s--)
+        if (rejectedCounts[stage] != 0)
         {
-          Object service = services.get(s);
-
-          // check all types
-          for(int t = 0; t < types.length; t++)
-          {
-            // if service is not instance of type then remove service
-            if (!types[t].isInstance(service))
-            {
-              services.remove(s);
-              break;
-            }
-          }
+          metrics.rejected(stage, rejectedCounts[stage]);
+          rejectedCounts[stage] = 0;
         }
       }
     }
 
-    void filterNotHaveTypes(Class<?>[] notHaveTypes)
+    /**
+     * Check the reference from the cheapest criterion to the most expensive one: the reference properties,
+     * the bundle, the predicate, then the implementation class (which may need to fetch the service)
+     */
+    private boolean accepts(InjectionPlan plan, ServiceReference<?> ref)
     {
-      if (notHaveTypes.length != 0)
-      {
-        fillAllServices();
-
-        for(int s = services.size() - 1; s >= 0; s--)
-        {
-          Object service = services.get(s);
-
-          // check all types
-          for(int t = 0; t < notHaveTypes.length; t++)
-          {
-            // if service is instance of type then remove service
-            if (notHaveTypes[t].isInstance(service))
-            {
-              services.remove(s);
-              break;
-            }
-          }
-        }
-      }
+      int stage = getRejectingStage(plan, ref);
+      if (stage < 0)
+        return true;
+      rejectedCounts[stage]++;
+      return false;
     }
 
-    void filterBundles(String[] bundleNames, String[] bundleVersionRanges)
+    /**
+     * @return the stage rejecting the reference or -1 if the reference is accepted
+     */
+    private int getRejectingStage(InjectionPlan plan, ServiceReference<?> ref)
     {
-      if (bundleNames.length != 0 || bundleVersionRanges.length != 0)
+      // filter with the pre-parsed filter, or only its clauses not answered by the property index
+      Filter serviceFilter = plan.serviceFilter;
+      if (indexResult != null && (indexResult.inexactRefs == null || !indexResult.inexactRefs.contains(ref)))
+        serviceFilter = indexResult.residualFilter;
+      if (serviceFilter != null && !serviceFilter.match(ref))
+        return ResolutionMetrics.FILTER;
+
+      // the bundle criterion are translated into the ids of the matching bundles
+      if (plan.hasBundleCriterion)
       {
-        // check same arrays size
-        if (bundleVersionRanges.length != 0)
-        {
-          if (bundleVersionRanges.length == 1)
-          {
-            if (bundleNames.length > 1)
-              throw new InjectionException("bundleNames have " + bundleNames.length + " entries but bundleVersionRanges have " + bundleVersionRanges.length + " entries");
-          }
-          else
-          {
-            if (bundleNames.length != bundleVersionRanges.length)
-              throw new InjectionException("bundleNames have " + bundleNames.length + " entries but bundleVersionRanges have " + bundleVersionRanges.length + " entries");
-          }
-        }
+        if (bundleIds == null)
+          bundleIds = bundleIndex.getBundleIds(plan);
+        if (!bundleIds.contains(ref.getProperty(Constants.SERVICE_BUNDLEID)))
+          return ResolutionMetrics.BUNDLE;
+      }
 
-        if (refs == null)
-          return;
+      if (plan.serviceReferencePredicateFactory != null && !testPredicate(plan.serviceReferencePredicateFactory, ref))
+        return ResolutionMetrics.PREDICATE;
 
-        Pattern[] patterns = new Pattern[bundleNames.length];
-        services = new ArrayList<>(refs.length);
-        for(ServiceReference<?> ref : refs)
-        {
-          Bundle bundle = ref.getBundle();
-          if (bundle == null)
-            continue;
-          String symbolicName = bundle.getSymbolicName();
-
-          // check bundle name
-          int foundIndex = findBundleName(symbolicName, bundleNames);
-          if (foundIndex == -1)
-            foundIndex = findBundleNameWithPatterns(symbolicName, bundleNames, patterns);
-
-          if (foundIndex >= 0)
-          {
-            if (bundleVersionRanges.length != 0)
-            {
-              try
-              {
-                // check bundle version
-                VersionRange versionRange = new VersionRange(bundleVersionRanges[foundIndex]);
-                if (!versionRange.includes(bundle.getVersion()))
-                  foundIndex = -1;
-              }
-              catch(IllegalArgumentException iae)
-              {
-                throw new InjectionException(iae);
-              }
-            }
-          }
-          else if (bundleNames.length == 0)
-          {
-            try
-            {
-              // check bundle version
-              VersionRange versionRange = new VersionRange(bundleVersionRanges[0]);
-              if (versionRange.includes(bundle.getVersion()))
-                foundIndex = 0;
-            }
-            catch(IllegalArgumentException iae)
-            {
-              throw new InjectionException(iae);
-            }
-          }
-
-          if (foundIndex >= 0)
-          {
-            Object service = bundleContext.getService(ref);
-            services.add(service);
-          }
-        }
+      if (!plan.hasClassCriterion)
+        return -1;
+      Class<?> serviceClass = getServiceClass(ref);
+
+      // the types are checked before the annotations, isAssignableFrom is cheaper than getAnnotation
+      for(Class<?> type : plan.types)
+      {
+        if (serviceClass == null || !type.isAssignableFrom(serviceClass))
+          return ResolutionMetrics.TYPE;
+      }
+      for(Class<?> notHaveType : plan.notHaveTypes)
+      {
+        if (serviceClass == null || notHaveType.isAssignableFrom(serviceClass))
+          return ResolutionMetrics.NOT_HAVE_TYPE;
+      }
+      for(Class<? extends Annotation> annotation : plan.annotations)
+      {
+        if (serviceClass == null || serviceClass.getAnnotation(annotation) == null)
+          return ResolutionMetrics.ANNOTATION;
+      }
+      for(Class<? extends Annotation> notHaveAnnotation : plan.notHaveAnnotations)
+      {
+        if (serviceClass == null || serviceClass.getAnnotation(notHaveAnnotation) != null)
+          return ResolutionMetrics.NOT_HAVE_ANNOTATION;
       }
+      return -1;
     }
 
-    private int findBundleNameWithPatterns(String symbolicName, String[] bundleNames, Pattern[] patterns)
+    private boolean testPredicate(Supplier<? extends Predicate<ServiceReference<?>>> serviceReferencePredicateFactory, ServiceReference<?> ref)
     {
-      for(int index = 0; index < bundleNames.length; index++)
+      try
       {
-        // check with regex
-        if (patterns[index] == null)
-        {
-          String regexpPattern = Pattern.quote(bundleNames[index]);
-          regexpPattern = regexpPattern.replaceAll("\\*", "\\\\E.*\\\\Q");
-          regexpPattern = regexpPattern.replaceAll("\\?", "\\\\E.\\\\Q");
-          regexpPattern = regexpPattern.replaceAll("\\\\Q\\\\E", "");
-          patterns[index] = Pattern.compile(regexpPattern);
-        }
-
-        if (patterns[index].matcher(symbolicName).matches())
-          return index;
+        if (serviceReferencePredicate == null)
+          serviceReferencePredicate = serviceReferencePredicateFactory.get();
+        return serviceReferencePredicate.test(ref);
+      }
+      catch(InjectionException e)
+      {
+        throw e;
+      }
+      catch(RuntimeException e)
+      {
+        throw new InjectionException(e);
       }
-      return -1;
     }
 
-    private int findBundleName(String symbolicName, String[] bundleNames)
+    /**
+     * Return the implementation class of the service without activating it when possible.
+     * The service is fetched only when its class cannot be found from the metadata.
+     */
+    private Class<?> getServiceClass(ServiceReference<?> ref)
     {
-      for(int index = 0; index < bundleNames.length; index++)
+      Long serviceId = (Long) ref.getProperty(Constants.SERVICE_ID);
+      Class<?> serviceClass = implementationClasses.get(serviceId);
+      if (serviceClass != null)
+        return serviceClass;
+
+      serviceClass = serviceRegistry.findImplementationClass(ref);
+      if (serviceClass == null)
       {
-        if (symbolicName.equals(bundleNames[index]))
-          return index;
+        Object service = getService(ref);
+        if (service == null)
+          return null;
+        serviceClass = service.getClass();
       }
-      return -1;
+
+      implementationClasses.put(serviceId, serviceClass);
+      return serviceClass;
     }
 
-    void fillAllServices()
+    Object getService(ServiceReference<?> ref)
     {
-      if (services != null)
-        return;
-      if (refs == null)
+      Object service = services.get(ref);
+      if (service == null)
       {
-        services = Collections.emptyList();
-        return;
+        metrics.gotService();
+        service = serviceRegistry.getService(ref);
+        services.put(ref, service);
       }
+      return service;
+    }
 
-      services = new ArrayList<>(refs.length);
-      for(int i = 0; i < refs.length; i++)
+    Object getFirstService()
+    {
+      return getService(refs.get(0));
+    }
+
+    List<Object> getServices()
+    {
+      Object[] values = new Object[refs.size()];
+      for(int i = 0; i < values.length; i++)
+        values[i] = getService(refs.get(i));
+      return Arrays.asList(values);
+    }
+
+    int serviceCount()
+    {
+      return refs.size();
+    }
+
+    /**
+     * Release the services fetched for references not kept
+     * @param keptRefs the references of the services to keep
+     * @return the references of the services kept and acquired
+     */
+    List<ServiceReference<?>> releaseServices(List<ServiceReference<?>> keptRefs)
+    {
+      Collection<ServiceReference<?>> kept = keptRefs.size() > 1? new HashSet<>(keptRefs) : keptRefs;
+      List<ServiceReference<?>> acquiredRefs = new ArrayList<>(keptRefs.size());
+      for(Map.Entry<ServiceReference<?>, Object> entry : services.entrySet())
       {
-        Object service = bundleContext.getService(refs[i]);
-        services.add(service);
+        if (entry.getValue() == null)
+          continue;
+        if (kept.contains(entry.getKey()))
+          acquiredRefs.add(entry.getKey());
+        else
+          serviceRegistry.ungetService(entry.getKey());
       }
+      return acquiredRefs;
     }
 
-    Object getFirstService()
+    /**
+     * Return a collection fetching the services on first access, the services already fetched are reused
+     * @param acquiredRefs the references of the services acquired for the collection
+     * @param deferredValue the deferred value keeping the acquired services when there is no requestor or <code>null</code>
+     */
+    List<Object> getLazyServices(IRequestor requestor, InjectionPlan plan, List<ServiceReference<?>> acquiredRefs, DeferredValue deferredValue)
     {
-      if (services != null)
-        return services.iterator().next();
+      Object[] fetchedServices = new Object[refs.size()];
+      for(int i = 0; i < fetchedServices.length; i++)
+        fetchedServices[i] = services.get(refs.get(i));
+      return new LazyServiceCollection(refs, fetchedServices, ref -> {
+        metrics.gotService();
+        Object service = serviceRegistry.getService(ref);
+        if (service != null && requestor != null)
+          serviceUsages.add(requestor, plan, acquiredRefs, ref);
+        else if (service != null && deferredValue != null)
+          deferredValue.add(acquiredRefs, ref);
+        return service;
+      });
+    }
 
-      return bundleContext.getService(refs[0]);
+    /**
+     * Return the ids of the services injected by the plan
+     */
+    long[] getResolvedServiceIds(InjectionPlan plan)
+    {
+      int count = refs.size();
+      if (!plan.isCollection && count > 1 && plan.takeHighestRankingIfMultiple)
+        count = 1;
+
+      long[] serviceIds = new long[count];
+      for(int i = 0; i < count; i++)
+        serviceIds[i] = (Long) refs.get(i).getProperty(Constants.SERVICE_ID);
+      return serviceIds;
     }
+  }
 
-    List<Object> getServices()
+  /**
+   * Resolve the references matching the plan, in ranking order.
+   * A single-valued plan taking the highest ranking stops at the first reference accepted by all the criterion.
+   * @param excludedRef a reference to ignore (unregistering service) or <code>null</code>
+   */
+  private Status query(InjectionPlan plan, ServiceReference<?> excludedRef)
+  {
+    // the listener must update the indexes before they are queried
+    dispatcher.ensureRegistered();
+    PropertyIndex.Result indexResult = propertyIndex.get(plan);
+    ServiceReference<?>[] candidates = indexResult != null? indexResult.refs : rankingIndex.get(plan.typeName);
+
+    Status status;
+    if (!plan.isCollection && plan.takeHighestRankingIfMultiple)
     {
-      fillAllServices();
+      status = new Status(null, plan.metrics);
+      status.indexResult = indexResult;
+      status.filterFirst(plan, candidates, excludedRef);
+    }
+    else
+    {
+      status = new Status(candidates, plan.metrics);
+      status.indexResult = indexResult;
+      if (excludedRef != null)
+        status.refs.remove(excludedRef);
+      status.filter(plan);
+    }
+    return status;
+  }
 
-      return Arrays.asList(services.toArray());
+  /**
+   * Check if the event can change the services injected by the plan for the subscription
+   */
+  private boolean isResultChanged(ServiceEventDispatcher.Subscription subscription, InjectionPlan plan, ServiceEvent event)
+  {
+    // the collection result is maintained from the events
+    LiveResult liveResult = plan.isCollection? liveResults.get(plan) : null;
+    if (liveResult != null)
+      return liveResult.update(event, ref -> accepts(plan, ref));
+
+    long[] resolvedServiceIds = subscription.resolvedServiceIds.get(plan);
+    if (resolvedServiceIds == null)
+      return true;
+
+    ServiceReference<?> ref = event.getServiceReference();
+    boolean unregistering = event.getType() == ServiceEvent.UNREGISTERING;
+    long serviceId = (Long) ref.getProperty(Constants.SERVICE_ID);
+    boolean wasResolved = false;
+    for(long resolvedServiceId : resolvedServiceIds)
+    {
+      if (resolvedServiceId == serviceId)
+      {
+        wasResolved = true;
+        break;
+      }
     }
 
-    int serviceCount()
+    // a service not injected and rejected by the criterion cannot change the result
+    if (!wasResolved)
     {
-      return services != null? services.size() : refs != null? refs.length : 0;
+      if (unregistering || !accepts(plan, ref))
+        return false;
     }
+
+    // evaluate again the plan without the unregistering service
+    Status status = query(plan, unregistering? ref : null);
+    status.releaseServices(Collections.emptyList());
+    return !Arrays.equals(resolvedServiceIds, status.getResolvedServiceIds(plan));
+  }
+
+  /**
+   * Check if the reference matches all the criterion of the plan
+   */
+  private boolean accepts(InjectionPlan plan, ServiceReference<?> ref)
+  {
+    Status status = new Status(new ServiceReference<?>[]{ref}, plan.metrics);
+    status.filter(plan);
+    status.releaseServices(Collections.emptyList());
+    return status.serviceCount() != 0;
   }
 
   private void addListener(Class<?> descriptorsClass, IRequestor requestor)
@@ -485,55 +682,235 @@ public final class OSGiNamedObjectSupplier extends ExtendedObjectSupplier
     }
   }
 
-  private static Class<?> getDesiredClass(Type desiredType)
+  /**
+   * Track the plan for the requestor, the subscription is only changed when the plan is not already tracked
+   */
+  private void track(IRequestor requestor, InjectionPlan plan)
   {
-    if (desiredType instanceof Class<?>)
-      return (Class<?>) desiredType;
-    if (desiredType instanceof ParameterizedType)
+    ServiceEventDispatcher.Subscription subscription = subscriptions.get(requestor);
+    if (subscription == null)
     {
-      Type rawType = ((ParameterizedType) desiredType).getRawType();
-      if (rawType instanceof Class<?>)
-        return (Class<?>) rawType;
+      subscription = new ServiceEventDispatcher.Subscription(requestor);
+      ServiceEventDispatcher.Subscription previous = subscriptions.putIfAbsent(requestor, subscription);
+      if (previous != null)
+        subscription = previous;
+    }
+
+    if (dispatcher.subscribe(subscription, plan))
+    {
+      addListener(plan.desiredClass, requestor);
+      retainLiveResult(plan);
     }
-    return null;
   }
 
-  private static Type getGenericTypeForCollection(Type desiredType)
+  private void untrack(IRequestor requestor, InjectionPlan plan)
   {
-    if (desiredType instanceof Class<?>)
-      return desiredType;
-    if (desiredType instanceof ParameterizedType)
-    {
-      Type rawType = ((ParameterizedType) desiredType).getActualTypeArguments()[0];
-      if (rawType instanceof Class<?>)
-        return rawType;
-      if (rawType instanceof WildcardType)
-      {
-        WildcardType wildcardType = (WildcardType) rawType;
-        if (wildcardType.getUpperBounds().length == 1)
-          return wildcardType.getUpperBounds()[0];
-      }
+    ServiceEventDispatcher.Subscription subscription = subscriptions.get(requestor);
+    if (subscription != null && dispatcher.unsubscribe(subscription, plan))
+    {
+      releaseLiveResult(plan);
+      if (!subscription.tracks(plan.desiredClass))
+        removeListener(plan.desiredClass, requestor);
+      if (subscription.isEmpty())
+        subscriptions.remove(requestor, subscription);
+    }
+  }
+
+  /**
+   * Check if the result of the plan can be maintained from the service events
+   */
+  private static boolean hasLiveResult(InjectionPlan plan)
+  {
+    return plan.isCollection && plan.serviceReferencePredicateFactory == null;
+  }
+
+  private void retainLiveResult(InjectionPlan plan)
+  {
+    if (hasLiveResult(plan))
+    {
+      liveResults.compute(plan, (p, liveResult) -> {
+        if (liveResult == null)
+          liveResult = new LiveResult(p);
+        liveResult.retain();
+        return liveResult;
+      });
+    }
+  }
+
+  private void releaseLiveResult(InjectionPlan plan)
+  {
+    if (hasLiveResult(plan))
+      liveResults.computeIfPresent(plan, (p, liveResult) -> liveResult.release()? null : liveResult);
+  }
+
+  @Override
+  public void beginBatch()
+  {
+    notifier.beginBatch();
+  }
+
+  @Override
+  public void endBatch()
+  {
+    notifier.endBatch();
+  }
+
+  @Override
+  public List<InjectionPointMetrics> getInjectionPoints()
+  {
+    List<InjectionPointMetrics> injectionPoints = new ArrayList<>();
+    for(InjectionPlan plan : plans.values())
+    {
+      if (plan.injectable)
+        injectionPoints.add(plan.metrics.snapshot());
     }
-    return null;
+    return injectionPoints;
+  }
+
+  @Override
+  public void reset()
+  {
+    for(InjectionPlan plan : plans.values())
+      plan.metrics.reset();
   }
 
-  private static void notifyRequestor(IRequestor requestor)
+  private void notifyRequestor(IRequestor requestor)
+  {
+    ServiceEventDispatcher.Subscription subscription = subscriptions.get(requestor);
+    if (asyncNotification || subscription != null && subscription.isAsync())
+      asyncExecutor.execute(requestor);
+    else
+      reinject(requestor);
+  }
+
+  private void reinject(IRequestor requestor)
   {
     if (requestor.isValid())
     {
       requestor.resolveArguments(false);
       requestor.execute();
     }
+    else
+    {
+      // the requestor will never be injected again
+      serviceUsages.release(requestor);
+      ServiceEventDispatcher.Subscription subscription = subscriptions.remove(requestor);
+      if (subscription != null)
+      {
+        for(InjectionPlan plan : subscription.plans)
+        {
+          removeListener(plan.desiredClass, requestor);
+          releaseLiveResult(plan);
+        }
+        dispatcher.unsubscribe(subscription);
+      }
+    }
   }
 
-  private static String[] checkStringArray(String[] values)
+  /**
+   * Return the highest ranking executor service registered with the property {@link #EXECUTOR_PROPERTY},
+   * otherwise the default executor
+   */
+  private Executor getNotificationExecutor()
   {
-    return values == null? new String[0] : values;
+    Executor executor = executorTracker.getExecutor();
+    return executor != null? executor : getDefaultExecutor();
   }
 
-  @SuppressWarnings("unchecked")
-  private static <T> Class<T>[] checkClassArray(Class<T>[] values)
+  private synchronized Executor getDefaultExecutor()
   {
-    return values == null? (Class<T>[]) new Class<?>[0] : values;
+    if (defaultExecutor == null)
+    {
+      defaultExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "OSGiNamed async notification");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return defaultExecutor;
+  }
+
+  @Activate
+  void activate()
+  {
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, OSGiNamedMetrics.class, true), new ObjectName(OBJECT_NAME));
+      mbeanRegistered = true;
+    }
+    catch(JMException e)
+    {
+      // already registered by another framework of the same VM: the metrics stay available as OSGi service
+    }
+    precompile();
+  }
+
+  /**
+   * Parse the criterion listed by the {@link PlanIndex} generated in the bundles by {@link OSGiNamedProcessor}.
+   * The criterion of the bundles installed later are parsed by their first injection.
+   */
+  private void precompile()
+  {
+    for(URL url : serviceRegistry.findEntries(PlanIndex.RESOURCE))
+    {
+      try
+      {
+        PlanIndex.read(url, InjectionPlan::precompile);
+      }
+      catch(IOException e)
+      {
+        // the criterion will be parsed by the first injection
+      }
+    }
+  }
+
+  @Deactivate
+  void deactivate()
+  {
+    // the MBean registered by another framework of the same VM is kept
+    if (mbeanRegistered)
+    {
+      mbeanRegistered = false;
+      try
+      {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+      }
+      catch(JMException e)
+      {
+        // already unregistered
+      }
+    }
+    dispatcher.close();
+    bundleIndex.close();
+    notifier.close();
+    asyncExecutor.close();
+    executorTracker.close();
+    synchronized(this)
+    {
+      if (defaultExecutor != null)
+      {
+        defaultExecutor.shutdown();
+        defaultExecutor = null;
+      }
+    }
+    subscriptions.clear();
+    liveResults.clear();
+    serviceUsages.releaseAll();
+    listeners.clear();
+  }
+
+  private long getLongProperty(String key, long defaultValue)
+  {
+    String value = serviceRegistry.getProperty(key);
+    if (value == null)
+      return defaultValue;
+    try
+    {
+      return Long.parseLong(value.trim());
+    }
+    catch(NumberFormatException e)
+    {
+      return defaultValue;
+    }
   }
-}
\ No newline at end of file
+}
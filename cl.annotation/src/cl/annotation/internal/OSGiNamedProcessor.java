@@ -0,0 +1,199 @@
+package cl.annotation.internal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.VersionRange;
+
+/**
+ * The class <b>OSGiNamedProcessor</b> allows to check the {@link cl.annotation.OSGiNamed} injection points at compile time.<br>
+ * The processor reports the errors otherwise thrown as {@link org.eclipse.e4.core.di.InjectionException} by the first injection:
+ * bundleName and bundleVersionRange of different lengths, malformed LDAP filters (including the filters generated from
+ * name and property) and malformed version ranges. It also writes the {@link PlanIndex} of the compiled classes, read by the
+ * supplier at activation so the first injections find the criterion already parsed.<br>
+ * The values given by a {@link cl.annotation.AbstractConfiguration} are only known at runtime and are not checked.
+ * The processor is not registered as a service, so it runs only when it is given to javac (<code>-processorpath</code>
+ * and <code>-processor</code>). The injection points annotated (or in a class annotated) with
+ * <code>@SuppressWarnings("OSGiNamed")</code> are neither checked nor indexed.
+ */
+@SupportedAnnotationTypes(OSGiNamedProcessor.OSGI_NAMED)
+public final class OSGiNamedProcessor extends AbstractProcessor
+{
+  static final String OSGI_NAMED = "cl.annotation.OSGiNamed";
+  static final String SUPPRESS_WARNINGS_KEY = "OSGiNamed";
+
+  private final Set<String> filters = new LinkedHashSet<>();
+  private final Set<String> versionRanges = new LinkedHashSet<>();
+  private final Set<String> bundleNames = new LinkedHashSet<>();
+  private final List<Element> originatingElements = new ArrayList<>();
+
+  @Override
+  public SourceVersion getSupportedSourceVersion()
+  {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+  {
+    for(TypeElement annotation : annotations)
+    {
+      for(Element element : roundEnv.getElementsAnnotatedWith(annotation))
+      {
+        if (isSuppressed(element))
+          continue;
+        for(AnnotationMirror mirror : element.getAnnotationMirrors())
+        {
+          if (mirror.getAnnotationType().asElement().equals(annotation))
+            check(element, mirror);
+        }
+      }
+    }
+
+    if (roundEnv.processingOver() && !originatingElements.isEmpty())
+      writeIndex();
+    return false;
+  }
+
+  /**
+   * Check if the element or one of its enclosing elements is annotated with <code>@SuppressWarnings("OSGiNamed")</code>
+   */
+  private static boolean isSuppressed(Element element)
+  {
+    for(Element current = element; current != null; current = current.getEnclosingElement())
+    {
+      SuppressWarnings suppressWarnings = current.getAnnotation(SuppressWarnings.class);
+      if (suppressWarnings != null && Arrays.asList(suppressWarnings.value()).contains(SUPPRESS_WARNINGS_KEY))
+        return true;
+    }
+    return false;
+  }
+
+  private void check(Element element, AnnotationMirror mirror)
+  {
+    Map<? extends ExecutableElement, ? extends AnnotationValue> values = processingEnv.getElementUtils().getElementValuesWithDefaults(mirror);
+    List<String> names = getStrings(values, "name");
+    List<String> property = getStrings(values, "property");
+    AnnotationValue filterValue = getValue(values, "filter");
+    List<String> elementBundleNames = getStrings(values, "bundleName");
+    AnnotationValue versionRangeValue = getValue(values, "bundleVersionRange");
+    List<String> elementVersionRanges = getStrings(values, "bundleVersionRange");
+    boolean valid = true;
+
+    String error = PlanIndex.checkBundleCriterion(elementBundleNames.size(), elementVersionRanges.size());
+    if (error != null)
+    {
+      printError(error, element, mirror, versionRangeValue);
+      valid = false;
+    }
+
+    for(String versionRange : elementVersionRanges)
+    {
+      try
+      {
+        new VersionRange(versionRange);
+      }
+      catch(IllegalArgumentException e)
+      {
+        printError("invalid bundleVersionRange \"" + versionRange + "\": " + e.getMessage(), element, mirror, versionRangeValue);
+        valid = false;
+      }
+    }
+
+    String filter = filterValue == null? null : (String) filterValue.getValue();
+    String generatedFilter = PlanIndex.generateFilter(names.toArray(new String[names.size()]), property.toArray(new String[property.size()]), filter);
+    if (generatedFilter != null)
+    {
+      try
+      {
+        FrameworkUtil.createFilter(generatedFilter);
+      }
+      catch(InvalidSyntaxException e)
+      {
+        printError("invalid LDAP filter \"" + generatedFilter + "\" generated from name, property and filter: " + e.getMessage(), element, mirror, filterValue);
+        valid = false;
+      }
+    }
+
+    if (!valid)
+      return;
+    if (generatedFilter != null)
+      filters.add(generatedFilter);
+    versionRanges.addAll(elementVersionRanges);
+    bundleNames.addAll(elementBundleNames);
+    originatingElements.add(element);
+  }
+
+  private void printError(String message, Element element, AnnotationMirror mirror, AnnotationValue value)
+  {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "@OSGiNamed: " + message, element, mirror, value);
+  }
+
+  private void writeIndex()
+  {
+    try
+    {
+      FileObject resource = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", PlanIndex.RESOURCE,
+        originatingElements.toArray(new Element[originatingElements.size()]));
+      try(Writer writer = resource.openWriter())
+      {
+        writer.write("# generated by " + OSGiNamedProcessor.class.getName() + "\n");
+        for(String filter : filters)
+          PlanIndex.write(writer, PlanIndex.FILTER, filter);
+        for(String versionRange : versionRanges)
+          PlanIndex.write(writer, PlanIndex.VERSION_RANGE, versionRange);
+        for(String bundleName : bundleNames)
+          PlanIndex.write(writer, PlanIndex.BUNDLE_NAME, bundleName);
+      }
+    }
+    catch(IOException e)
+    {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "@OSGiNamed: unable to write " + PlanIndex.RESOURCE + ": " + e.getMessage());
+    }
+  }
+
+  private static AnnotationValue getValue(Map<? extends ExecutableElement, ? extends AnnotationValue> values, String name)
+  {
+    for(Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : values.entrySet())
+    {
+      if (entry.getKey().getSimpleName().contentEquals(name))
+        return entry.getValue();
+    }
+    return null;
+  }
+
+  private static List<String> getStrings(Map<? extends ExecutableElement, ? extends AnnotationValue> values, String name)
+  {
+    AnnotationValue value = getValue(values, name);
+    if (value == null)
+      return Collections.emptyList();
+
+    // a single value is given as a list of one element
+    List<String> strings = new ArrayList<>();
+    for(Object item : (List<?>) value.getValue())
+      strings.add((String) ((AnnotationValue) item).getValue());
+    return strings;
+  }
+}
@@ -0,0 +1,152 @@
+package cl.annotation.internal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
+/**
+ * The class <b>PlanIndex</b> allows to share the criterion syntax between {@link InjectionPlan} and {@link OSGiNamedProcessor}.<br>
+ * The processor writes in each compiled bundle an index of the LDAP filters, bundle version ranges and bundle name patterns
+ * used by its {@link cl.annotation.OSGiNamed} injection points. The supplier reads the indexes at activation and parses
+ * the criterion once, before the first injections. This class must only depend on the JDK.
+ *
+ * <pre>
+ * # one criterion per line: kind value
+ * filter (&amp;(component.name=TODO1)(key=value))
+ * range [1.0.0,2.0.0)
+ * glob cl.annotation.*
+ * </pre>
+ */
+final class PlanIndex
+{
+  /** location of the index in a bundle */
+  static final String RESOURCE = "META-INF/cl.annotation/OSGiNamed.index";
+
+  /** a filter generated by {@link #generateFilter(String[], String[], String)} */
+  static final String FILTER = "filter";
+  /** a bundle version range */
+  static final String VERSION_RANGE = "range";
+  /** a bundle name pattern */
+  static final String BUNDLE_NAME = "glob";
+
+  private PlanIndex()
+  {
+  }
+
+  /**
+   * Generate the LDAP filter matching the names, the properties and the filter of an injection point
+   * @return the filter or <code>null</code> if there is no criterion
+   */
+  static String generateFilter(String[] names, String[] property, String filter)
+  {
+    boolean hasFilter = filter != null && !"".equals(filter);
+    if (names.length == 0 && property.length == 0 && !hasFilter)
+      return null;
+
+    int criterionCount = (names.length != 0? 1 : 0) + property.length + (hasFilter? 1 : 0);
+    StringBuilder builder = new StringBuilder(64);
+    if (criterionCount > 1)
+      builder.append("(&");
+
+    if (names.length != 0)
+    {
+      if (names.length > 1)
+        builder.append("(|");
+      for(String name : names)
+        builder.append("(component.name=").append(name).append(')');
+      if (names.length > 1)
+        builder.append(')');
+    }
+
+    for(String p : property)
+      builder.append('(').append(p).append(')');
+
+    if (hasFilter)
+      builder.append(filter);
+
+    if (criterionCount > 1)
+      builder.append(')');
+    return builder.toString();
+  }
+
+  /**
+   * Check that each bundle name has a version range, or that one version range is given for at most one bundle name
+   * @return the error message or <code>null</code> if the criterion are consistent
+   */
+  static String checkBundleCriterion(int bundleNameCount, int bundleVersionRangeCount)
+  {
+    if (bundleVersionRangeCount == 0)
+      return null;
+    if (bundleVersionRangeCount == 1? bundleNameCount > 1 : bundleNameCount != bundleVersionRangeCount)
+      return "bundleNames have " + bundleNameCount + " entries but bundleVersionRanges have " + bundleVersionRangeCount + " entries";
+    return null;
+  }
+
+  /**
+   * Write a line of the index
+   * @param kind {@link #FILTER}, {@link #VERSION_RANGE} or {@link #BUNDLE_NAME}
+   */
+  static void write(Writer writer, String kind, String value) throws IOException
+  {
+    writer.write(kind);
+    writer.write(' ');
+    for(int i = 0; i < value.length(); i++)
+    {
+      char c = value.charAt(i);
+      if (c == '\\')
+        writer.write("\\\\");
+      else if (c == '\n')
+        writer.write("\\n");
+      else if (c == '\r')
+        writer.write("\\r");
+      else
+        writer.write(c);
+    }
+    writer.write('\n');
+  }
+
+  /**
+   * Read an index
+   * @param consumer receive the kind and the value of each line
+   */
+  static void read(URL url, BiConsumer<String, String> consumer) throws IOException
+  {
+    try(BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), StandardCharsets.UTF_8)))
+    {
+      String line;
+      while((line = reader.readLine()) != null)
+      {
+        int separator = line.indexOf(' ');
+        if (line.startsWith("#") || separator <= 0)
+          continue;
+        consumer.accept(line.substring(0, separator), unescape(line, separator + 1));
+      }
+    }
+  }
+
+  private static String unescape(String line, int start)
+  {
+    if (line.indexOf('\\', start) < 0)
+      return line.substring(start);
+
+    StringBuilder builder = new StringBuilder(line.length() - start);
+    for(int i = start; i < line.length(); i++)
+    {
+      char c = line.charAt(i);
+      if (c == '\\' && i + 1 < line.length())
+      {
+        c = line.charAt(++i);
+        if (c == 'n')
+          c = '\n';
+        else if (c == 'r')
+          c = '\r';
+      }
+      builder.append(c);
+    }
+    return builder.toString();
+  }
+}
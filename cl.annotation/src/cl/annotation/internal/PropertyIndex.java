@@ -0,0 +1,411 @@
+package cl.annotation.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The class <b>PropertyIndex</b> allows to answer the equality clauses of the plans with posting lists instead of a linear LDAP scan.<br>
+ * The indexed keys are given by the framework property {@link #INDEXED_PROPERTIES_PROPERTY} (none by default). For each
+ * <code>objectClass</code> queried, the references of the {@link RankingIndex} are indexed by value of each key, then updated
+ * from the service events given to {@link #update(ServiceEvent)}.<br>
+ * The <code>name</code> and the <code>key=value</code> properties of a plan on indexed keys are answered by intersecting
+ * the posting lists, only the remaining clauses are evaluated by a residual LDAP filter. A reference whose indexed property
+ * is not a string is kept as inexact and checked with the whole filter, to keep the typed comparison of LDAP.
+ * The posting lists are not used when they are not selective enough, the ranking index is scanned instead.
+ */
+final class PropertyIndex
+{
+  /** framework property: comma separated keys of the indexed service properties, for example "component.name,key" */
+  static final String INDEXED_PROPERTIES_PROPERTY = "cl.annotation.index.properties";
+
+  private static final String COMPONENT_NAME = "component.name";
+  private static final int MAXIMUM_QUERIES = 4096;
+  /** the posting lists are used for a collection if they give less than 1/16 of the references */
+  private static final int COLLECTION_SELECTIVITY = 16;
+  private static final Query NOT_INDEXED = new Query(new Clause[0], null);
+
+  private final RankingIndex rankingIndex;
+  private final Set<String> keys = new HashSet<>();
+  private final Map<String, ObjectClassIndex> indexes = new HashMap<>();
+  private final BoundedCache<InjectionPlan, Query> queries = new BoundedCache<>(MAXIMUM_QUERIES);
+
+  /**
+   * Constructor
+   * @param indexedKeys the value of {@link #INDEXED_PROPERTIES_PROPERTY} or <code>null</code>
+   */
+  PropertyIndex(RankingIndex rankingIndex, String indexedKeys)
+  {
+    this.rankingIndex = rankingIndex;
+    if (indexedKeys != null)
+    {
+      for(String key : indexedKeys.split(","))
+      {
+        if (!key.trim().isEmpty())
+          keys.add(key.trim().toLowerCase(Locale.ROOT));
+      }
+    }
+  }
+
+  /**
+   * Resolve the candidates of the plan with the posting lists
+   * @return the candidates or <code>null</code> if the plan has no clause on an indexed key or if the scan
+   * of the ranking index is expected to be cheaper
+   */
+  Result get(InjectionPlan plan)
+  {
+    if (keys.isEmpty())
+      return null;
+    Query query = queries.computeIfAbsent(plan, this::createQuery);
+    if (query == NOT_INDEXED)
+      return null;
+
+    synchronized(this)
+    {
+      ServiceReference<?>[] rankedRefs = rankingIndex.get(plan.typeName);
+      ObjectClassIndex index = indexes.get(plan.typeName);
+      if (index == null)
+      {
+        index = new ObjectClassIndex();
+        for(ServiceReference<?> ref : rankedRefs)
+          index.add(ref, keys);
+        indexes.put(plan.typeName, index);
+      }
+      return index.find(query, rankedRefs.length, !plan.isCollection && plan.takeHighestRankingIfMultiple);
+    }
+  }
+
+  /**
+   * Update the indexed references with a service event
+   */
+  synchronized void update(ServiceEvent event)
+  {
+    if (indexes.isEmpty())
+      return;
+
+    int type = event.getType();
+    if (type != ServiceEvent.REGISTERED && type != ServiceEvent.MODIFIED && type != ServiceEvent.UNREGISTERING)
+      return;
+
+    ServiceReference<?> ref = event.getServiceReference();
+    Object objectClasses = ref.getProperty(Constants.OBJECTCLASS);
+    if (!(objectClasses instanceof String[]))
+      return;
+    for(String objectClass : (String[]) objectClasses)
+    {
+      ObjectClassIndex index = indexes.get(objectClass);
+      if (index == null)
+        continue;
+      index.remove(ref);
+      if (type != ServiceEvent.UNREGISTERING)
+        index.add(ref, keys);
+    }
+  }
+
+  synchronized void clear()
+  {
+    indexes.clear();
+  }
+
+  /**
+   * Split the names and the properties of the plan into clauses on indexed keys and a residual filter
+   */
+  private Query createQuery(InjectionPlan plan)
+  {
+    List<Clause> clauses = new ArrayList<>();
+    String[] residualNames = plan.names;
+    if (plan.names.length != 0 && keys.contains(COMPONENT_NAME) && areEqualityValues(plan.names))
+    {
+      clauses.add(new Clause(COMPONENT_NAME, unescape(plan.names)));
+      residualNames = new String[0];
+    }
+
+    List<String> residualProperties = new ArrayList<>();
+    for(String property : plan.property)
+    {
+      int separator = property.indexOf('=');
+      String key = separator > 0? property.substring(0, separator) : null;
+      String value = separator > 0? property.substring(separator + 1) : null;
+      if (key != null && isKey(key) && keys.contains(key.toLowerCase(Locale.ROOT)) && isEqualityValue(value))
+        clauses.add(new Clause(key.toLowerCase(Locale.ROOT), unescape(new String[]{value})));
+      else
+        residualProperties.add(property);
+    }
+
+    if (clauses.isEmpty())
+      return NOT_INDEXED;
+    String residualFilter = PlanIndex.generateFilter(residualNames, residualProperties.toArray(new String[residualProperties.size()]), plan.filter);
+    return new Query(clauses.toArray(new Clause[clauses.size()]), InjectionPlan.createFilter(residualFilter));
+  }
+
+  private static boolean isKey(String key)
+  {
+    for(int i = 0; i < key.length(); i++)
+    {
+      char c = key.charAt(i);
+      if (Character.isWhitespace(c) || "()<>~=*\\".indexOf(c) >= 0)
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean areEqualityValues(String[] values)
+  {
+    for(String value : values)
+    {
+      if (!isEqualityValue(value))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Check that the value of a clause is not a substring or a presence test
+   */
+  private static boolean isEqualityValue(String value)
+  {
+    for(int i = 0; i < value.length(); i++)
+    {
+      char c = value.charAt(i);
+      if (c == '\\')
+        i++;
+      else if (c == '*' || c == '(' || c == ')')
+        return false;
+    }
+    return true;
+  }
+
+  private static String[] unescape(String[] values)
+  {
+    String[] unescaped = new String[values.length];
+    for(int v = 0; v < values.length; v++)
+    {
+      StringBuilder builder = new StringBuilder(values[v].length());
+      for(int i = 0; i < values[v].length(); i++)
+      {
+        char c = values[v].charAt(i);
+        if (c == '\\' && i + 1 < values[v].length())
+          c = values[v].charAt(++i);
+        builder.append(c);
+      }
+      unescaped[v] = builder.toString();
+    }
+    return unescaped;
+  }
+
+  /**
+   * The class <b>Clause</b> allows to keep an equality clause on an indexed key, one of the values must match.<br>
+   */
+  private static final class Clause
+  {
+    final String key;
+    final String[] values;
+
+    Clause(String key, String[] values)
+    {
+      this.key = key;
+      this.values = values;
+    }
+  }
+
+  /**
+   * The class <b>Query</b> allows to keep the clauses of a plan answered by the index.<br>
+   */
+  private static final class Query
+  {
+    final Clause[] clauses;
+    final Filter residualFilter;
+
+    Query(Clause[] clauses, Filter residualFilter)
+    {
+      this.clauses = clauses;
+      this.residualFilter = residualFilter;
+    }
+  }
+
+  /**
+   * The class <b>Result</b> allows to give the candidates resolved by the index.<br>
+   */
+  static final class Result
+  {
+    /** the candidates sorted by ranking */
+    final ServiceReference<?>[] refs;
+    /** the candidates to check with the whole filter of the plan, <code>null</code> if there is none */
+    final Set<ServiceReference<?>> inexactRefs;
+    /** the filter of the clauses not answered by the index or <code>null</code> */
+    final Filter residualFilter;
+
+    Result(ServiceReference<?>[] refs, Set<ServiceReference<?>> inexactRefs, Filter residualFilter)
+    {
+      this.refs = refs;
+      this.inexactRefs = inexactRefs;
+      this.residualFilter = residualFilter;
+    }
+  }
+
+  /**
+   * The class <b>ObjectClassIndex</b> allows to keep the posting lists of the references of one <code>objectClass</code>.<br>
+   */
+  private static final class ObjectClassIndex
+  {
+    final Map<String, Map<String, Set<ServiceReference<?>>>> postings = new HashMap<>();
+    final Map<String, Set<ServiceReference<?>>> inexactRefs = new HashMap<>();
+    /** indexed key and value (null when inexact) pairs of each reference */
+    final Map<ServiceReference<?>, List<String>> entries = new HashMap<>();
+
+    void add(ServiceReference<?> ref, Set<String> keys)
+    {
+      List<String> refEntries = new ArrayList<>(2);
+      for(String key : keys)
+      {
+        Object value = ref.getProperty(key);
+        if (value == null)
+          continue;
+        Collection<?> values = value instanceof String[]? Arrays.asList((String[]) value) : value instanceof Collection<?>? (Collection<?>) value : null;
+        if (values == null)
+          addEntry(ref, refEntries, key, value);
+        else
+        {
+          for(Object v : values)
+            addEntry(ref, refEntries, key, v);
+        }
+      }
+      if (!refEntries.isEmpty())
+        entries.put(ref, refEntries);
+    }
+
+    private void addEntry(ServiceReference<?> ref, List<String> refEntries, String key, Object value)
+    {
+      if (value instanceof String)
+        postings.computeIfAbsent(key, k -> new HashMap<>()).computeIfAbsent((String) value, v -> new HashSet<>()).add(ref);
+      else
+        inexactRefs.computeIfAbsent(key, k -> new HashSet<>()).add(ref);
+      refEntries.add(key);
+      refEntries.add(value instanceof String? (String) value : null);
+    }
+
+    void remove(ServiceReference<?> ref)
+    {
+      List<String> refEntries = entries.remove(ref);
+      if (refEntries == null)
+        return;
+      for(int i = 0; i < refEntries.size(); i += 2)
+      {
+        String key = refEntries.get(i);
+        String value = refEntries.get(i + 1);
+        if (value == null)
+          inexactRefs.get(key).remove(ref);
+        else
+        {
+          // a value may be given twice by a multi-valued property
+          Map<String, Set<ServiceReference<?>>> valuePostings = postings.get(key);
+          Set<ServiceReference<?>> refs = valuePostings.get(value);
+          if (refs != null && refs.remove(ref) && refs.isEmpty())
+            valuePostings.remove(value);
+        }
+      }
+    }
+
+    /**
+     * @param scanCount the number of references scanned without index
+     * @param firstOnly <code>true</code> if the scan stops at the first accepted reference
+     */
+    Result find(Query query, int scanCount, boolean firstOnly)
+    {
+      // the smallest clause gives the candidates, the other clauses are checked on each candidate
+      Clause smallest = null;
+      int smallestSize = Integer.MAX_VALUE;
+      for(Clause clause : query.clauses)
+      {
+        int size = size(clause);
+        if (size < smallestSize)
+        {
+          smallest = clause;
+          smallestSize = size;
+        }
+      }
+
+      // the candidates are sorted by ranking: a scan stopping at the first of k matching references reads about n/k
+      // references, a full scan reads n references but a match costs less than a ranking comparison
+      if (firstOnly? (long) smallestSize * smallestSize > scanCount : (long) smallestSize * COLLECTION_SELECTIVITY > scanCount)
+        return null;
+
+      Set<ServiceReference<?>> candidates = new HashSet<>();
+      Map<String, Set<ServiceReference<?>>> valuePostings = postings.getOrDefault(smallest.key, Collections.emptyMap());
+      for(String value : smallest.values)
+        candidates.addAll(valuePostings.getOrDefault(value, Collections.emptySet()));
+      candidates.addAll(inexactRefs.getOrDefault(smallest.key, Collections.emptySet()));
+
+      List<ServiceReference<?>> refs = new ArrayList<>(candidates.size());
+      Set<ServiceReference<?>> inexact = null;
+      for(ServiceReference<?> candidate : candidates)
+      {
+        // an unregistered reference may remain when its event was received before the index was built
+        if (candidate.getBundle() == null)
+          continue;
+
+        boolean exact = true;
+        boolean accepted = true;
+        for(Clause clause : query.clauses)
+        {
+          int match = match(clause, candidate);
+          if (match < 0)
+          {
+            accepted = false;
+            break;
+          }
+          exact &= match > 0;
+        }
+        if (!accepted)
+          continue;
+
+        refs.add(candidate);
+        if (!exact)
+        {
+          if (inexact == null)
+            inexact = new HashSet<>();
+          inexact.add(candidate);
+        }
+      }
+
+      ServiceReference<?>[] sortedRefs = refs.toArray(new ServiceReference<?>[refs.size()]);
+      Arrays.sort(sortedRefs, LiveResult.RANKING_ORDER);
+      return new Result(sortedRefs, inexact, query.residualFilter);
+    }
+
+    private int size(Clause clause)
+    {
+      int size = inexactRefs.getOrDefault(clause.key, Collections.emptySet()).size();
+      Map<String, Set<ServiceReference<?>>> valuePostings = postings.getOrDefault(clause.key, Collections.emptyMap());
+      for(String value : clause.values)
+        size += valuePostings.getOrDefault(value, Collections.emptySet()).size();
+      return size;
+    }
+
+    /**
+     * @return 1 if a posting list of the clause contains the reference, 0 if the reference is inexact, -1 otherwise
+     */
+    private int match(Clause clause, ServiceReference<?> ref)
+    {
+      Map<String, Set<ServiceReference<?>>> valuePostings = postings.getOrDefault(clause.key, Collections.emptyMap());
+      for(String value : clause.values)
+      {
+        if (valuePostings.getOrDefault(value, Collections.emptySet()).contains(ref))
+          return 1;
+      }
+      return inexactRefs.getOrDefault(clause.key, Collections.emptySet()).contains(ref)? 0 : -1;
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package cl.annotation.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The class <b>RankedReferences</b> allows to keep service references sorted by 'service.ranking' descending
+ * then 'service.id' ascending.<br>
+ * Each reference is kept with the ranking it had when it was added, so it is found in O(log n) even after its ranking
+ * has been modified. The sorted array is built again only when it is requested after a change.
+ * The owner must synchronize the calls, only {@link #peek()} can be called without lock.
+ */
+final class RankedReferences
+{
+  private final TreeSet<Entry> entries = new TreeSet<>();
+  private final Map<ServiceReference<?>, Entry> entriesByRef = new HashMap<>();
+  private volatile ServiceReference<?>[] array;
+
+  /**
+   * Constructor
+   * @param refs the references sorted with {@link LiveResult#RANKING_ORDER}
+   */
+  RankedReferences(ServiceReference<?>[] refs)
+  {
+    for(ServiceReference<?> ref : refs)
+    {
+      Entry entry = new Entry(ref);
+      entries.add(entry);
+      entriesByRef.put(ref, entry);
+    }
+    array = refs;
+  }
+
+  /**
+   * Return the sorted references or <code>null</code> if they must be sorted again by {@link #toArray()}
+   */
+  ServiceReference<?>[] peek()
+  {
+    return array;
+  }
+
+  /**
+   * Return the sorted references (the array must not be modified)
+   */
+  ServiceReference<?>[] toArray()
+  {
+    ServiceReference<?>[] refs = array;
+    if (refs == null)
+    {
+      refs = new ServiceReference<?>[entries.size()];
+      int index = 0;
+      for(Entry entry : entries)
+        refs[index++] = entry.ref;
+      array = refs;
+    }
+    return refs;
+  }
+
+  /**
+   * Add the reference or move it with its current ranking
+   * @return <code>true</code> if the sorted references have changed
+   */
+  boolean put(ServiceReference<?> ref)
+  {
+    Entry entry = new Entry(ref);
+    Entry previous = entriesByRef.get(ref);
+    if (previous != null && previous.ranking == entry.ranking)
+      return false;
+
+    entriesByRef.put(ref, entry);
+    if (previous == null)
+    {
+      entries.add(entry);
+      array = null;
+      return true;
+    }
+
+    // the order changes only if the reference has new neighbours
+    Entry lower = entries.lower(previous);
+    Entry higher = entries.higher(previous);
+    entries.remove(previous);
+    entries.add(entry);
+    if (entries.lower(entry) == lower && entries.higher(entry) == higher)
+      return false;
+    array = null;
+    return true;
+  }
+
+  /**
+   * @return <code>true</code> if the reference was kept
+   */
+  boolean remove(ServiceReference<?> ref)
+  {
+    Entry entry = entriesByRef.remove(ref);
+    if (entry == null)
+      return false;
+    entries.remove(entry);
+    array = null;
+    return true;
+  }
+
+  /**
+   * The class <b>Entry</b> allows to keep a reference with the ranking used to sort it.<br>
+   */
+  private static final class Entry implements Comparable<Entry>
+  {
+    final ServiceReference<?> ref;
+    final int ranking;
+    final long serviceId;
+
+    Entry(ServiceReference<?> ref)
+    {
+      this.ref = ref;
+      Object rankingValue = ref.getProperty(Constants.SERVICE_RANKING);
+      ranking = rankingValue instanceof Integer? (Integer) rankingValue : 0;
+      serviceId = (Long) ref.getProperty(Constants.SERVICE_ID);
+    }
+
+    @Override
+    public int compareTo(Entry other)
+    {
+      // highest ranking first, then lowest service.id
+      if (ranking != other.ranking)
+        return ranking > other.ranking? -1 : 1;
+      return Long.compare(serviceId, other.serviceId);
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package cl.annotation.internal;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.e4.core.di.InjectionException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The class <b>RankingIndex</b> allows to keep the service references of each <code>objectClass</code> sorted
+ * by 'service.ranking' descending then 'service.id' ascending.<br>
+ * An <code>objectClass</code> is queried once in the registry, then its references are updated from the service events
+ * given to {@link #update(ServiceEvent)}. The events must be received before the first query.
+ * An event updates the {@link RankedReferences} in O(log n), the sorted array is built again only when it is queried.
+ */
+final class RankingIndex
+{
+  private static final ServiceReference<?>[] EMPTY = new ServiceReference<?>[0];
+
+  private final ServiceRegistry serviceRegistry;
+  private final Map<String, RankedReferences> refsByObjectClass = new ConcurrentHashMap<>();
+  private final Set<ServiceReference<?>> unregisteringRefs = new HashSet<>();
+  private long eventCount;
+
+  RankingIndex(ServiceRegistry serviceRegistry)
+  {
+    this.serviceRegistry = serviceRegistry;
+  }
+
+  /**
+   * Return the sorted references registered with the objectClass (the array must not be modified)
+   */
+  ServiceReference<?>[] get(String objectClass)
+  {
+    RankedReferences rankedRefs = refsByObjectClass.get(objectClass);
+    if (rankedRefs != null)
+    {
+      ServiceReference<?>[] refs = rankedRefs.peek();
+      if (refs != null)
+        return refs;
+      synchronized(this)
+      {
+        return rankedRefs.toArray();
+      }
+    }
+
+    long expectedEventCount;
+    synchronized(this)
+    {
+      expectedEventCount = eventCount;
+    }
+
+    ServiceReference<?>[] refs;
+    try
+    {
+      refs = serviceRegistry.getServiceReferences(objectClass, null);
+    }
+    catch(InvalidSyntaxException e)
+    {
+      throw new InjectionException(e);
+    }
+    if (refs == null)
+      refs = EMPTY;
+    else
+      Arrays.sort(refs, LiveResult.RANKING_ORDER);
+
+    // the references are indexed only if no event has been received during the query
+    synchronized(this)
+    {
+      refs = removeUnregistered(refs);
+      if (eventCount == expectedEventCount)
+        refsByObjectClass.putIfAbsent(objectClass, new RankedReferences(refs));
+    }
+    return refs;
+  }
+
+  /**
+   * Update the indexed references with a service event
+   */
+  synchronized void update(ServiceEvent event)
+  {
+    eventCount++;
+
+    // the registry still gives an unregistering reference until all its listeners have been called
+    ServiceReference<?> ref = event.getServiceReference();
+    if (event.getType() == ServiceEvent.UNREGISTERING)
+      unregisteringRefs.add(ref);
+    else if (!unregisteringRefs.isEmpty())
+      unregisteringRefs.removeIf(unregisteringRef -> unregisteringRef.getBundle() == null);
+
+    Object objectClasses = ref.getProperty(Constants.OBJECTCLASS);
+    if (!(objectClasses instanceof String[]))
+      return;
+
+    for(String objectClass : (String[]) objectClasses)
+    {
+      RankedReferences rankedRefs = refsByObjectClass.get(objectClass);
+      if (rankedRefs == null)
+        continue;
+
+      // a modified service is moved because its ranking may have changed
+      if (event.getType() == ServiceEvent.UNREGISTERING)
+        rankedRefs.remove(ref);
+      else
+        rankedRefs.put(ref);
+    }
+  }
+
+  synchronized void clear()
+  {
+    eventCount++;
+    refsByObjectClass.clear();
+    unregisteringRefs.clear();
+  }
+
+  /**
+   * Remove the references whose UNREGISTERING event has already been received, the query may still return them
+   */
+  private ServiceReference<?>[] removeUnregistered(ServiceReference<?>[] refs)
+  {
+    int count = 0;
+    for(ServiceReference<?> ref : refs)
+    {
+      if (ref.getBundle() != null && !unregisteringRefs.contains(ref))
+        count++;
+    }
+    if (count == refs.length)
+      return refs;
+
+    ServiceReference<?>[] registeredRefs = new ServiceReference<?>[count];
+    count = 0;
+    for(ServiceReference<?> ref : refs)
+    {
+      if (ref.getBundle() != null && !unregisteringRefs.contains(ref))
+        registeredRefs[count++] = ref;
+    }
+    return registeredRefs;
+  }
+}
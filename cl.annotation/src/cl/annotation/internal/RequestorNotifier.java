@@ -0,0 +1,132 @@
+package cl.annotation.internal;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.eclipse.e4.core.di.suppliers.IRequestor;
+
+/**
+ * The class <b>RequestorNotifier</b> allows to coalesce the notifications of the tracked requestors.<br>
+ * Without quiet window and outside a batch, a requestor is notified immediately.
+ * Otherwise the notifications are merged per requestor and each requestor is notified once
+ * when the quiet window has elapsed without new notification or when the outermost batch ends.
+ * A continuous stream of notifications can not postpone the notification beyond the maximum delay.
+ */
+final class RequestorNotifier
+{
+  private final Consumer<IRequestor> action;
+  private final long quietWindow;
+  private final long maximumDelay;
+  private final Set<IRequestor> pending = new LinkedHashSet<>();
+  private long firstPendingTime;
+  private int batchDepth;
+  private ScheduledExecutorService scheduler;
+  private ScheduledFuture<?> scheduledFlush;
+
+  /**
+   * Constructor
+   * @param action the notification of one requestor
+   * @param quietWindow the quiet window in milliseconds (0 to notify immediately)
+   * @param maximumDelay the maximum delay in milliseconds since the first merged notification
+   */
+  RequestorNotifier(Consumer<IRequestor> action, long quietWindow, long maximumDelay)
+  {
+    this.action = action;
+    this.quietWindow = quietWindow;
+    this.maximumDelay = Math.max(quietWindow, maximumDelay);
+  }
+
+  void notify(IRequestor requestor)
+  {
+    synchronized(this)
+    {
+      if (batchDepth != 0 || quietWindow > 0)
+      {
+        if (pending.isEmpty())
+          firstPendingTime = System.nanoTime();
+        pending.add(requestor);
+        if (batchDepth == 0)
+          scheduleFlush();
+        return;
+      }
+    }
+
+    action.accept(requestor);
+  }
+
+  synchronized void beginBatch()
+  {
+    batchDepth++;
+  }
+
+  void endBatch()
+  {
+    synchronized(this)
+    {
+      if (batchDepth == 0)
+        throw new IllegalStateException("endBatch() called without beginBatch()");
+      if (--batchDepth != 0)
+        return;
+      if (scheduledFlush != null)
+      {
+        scheduledFlush.cancel(false);
+        scheduledFlush = null;
+      }
+    }
+
+    flush();
+  }
+
+  void flush()
+  {
+    List<IRequestor> requestors;
+    synchronized(this)
+    {
+      if (pending.isEmpty())
+        return;
+      requestors = new ArrayList<>(pending);
+      pending.clear();
+    }
+
+    for(IRequestor requestor : requestors)
+      action.accept(requestor);
+  }
+
+  synchronized void close()
+  {
+    if (scheduler != null)
+    {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+    scheduledFlush = null;
+    pending.clear();
+    batchDepth = 0;
+  }
+
+  private void scheduleFlush()
+  {
+    // restart the quiet window, without exceeding the maximum delay
+    if (scheduledFlush != null)
+      scheduledFlush.cancel(false);
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstPendingTime);
+    long delay = Math.max(0, Math.min(quietWindow, maximumDelay - elapsed));
+
+    if (scheduler == null)
+    {
+      scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "OSGiNamed notifier");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    scheduledFlush = scheduler.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+  }
+}
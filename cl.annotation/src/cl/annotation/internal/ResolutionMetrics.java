@@ -0,0 +1,214 @@
+package cl.annotation.internal;
+
+import static cl.annotation.OSGiNamedMetrics.LATENCY_BUCKET_BOUNDS;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import cl.annotation.OSGiNamedMetrics;
+import cl.annotation.OSGiNamedMetrics.InjectionPointMetrics;
+
+/**
+ * The class <b>ResolutionMetrics</b> allows to accumulate the metrics of one injection plan.<br>
+ * The counters are {@link LongAdder} so the resolutions of several threads do not contend.
+ */
+final class ResolutionMetrics
+{
+  /** rejection stages, in the order of the checks */
+  static final String[] STAGES = {OSGiNamedMetrics.STAGE_FILTER, OSGiNamedMetrics.STAGE_BUNDLE, OSGiNamedMetrics.STAGE_PREDICATE,
+    OSGiNamedMetrics.STAGE_TYPE, OSGiNamedMetrics.STAGE_NOT_HAVE_TYPE, OSGiNamedMetrics.STAGE_ANNOTATION, OSGiNamedMetrics.STAGE_NOT_HAVE_ANNOTATION};
+  static final int FILTER = 0;
+  static final int BUNDLE = 1;
+  static final int PREDICATE = 2;
+  static final int TYPE = 3;
+  static final int NOT_HAVE_TYPE = 4;
+  static final int ANNOTATION = 5;
+  static final int NOT_HAVE_ANNOTATION = 6;
+
+  private final String injectionPoint;
+  private final LongAdder resolutionCount = new LongAdder();
+  private final LongAdder totalLatency = new LongAdder();
+  private final AtomicLong maxLatency = new AtomicLong();
+  private final LongAdder[] latencyHistogram = newAdders(LATENCY_BUCKET_BOUNDS.length + 1);
+  private final LongAdder scannedReferenceCount = new LongAdder();
+  private final LongAdder getServiceCount = new LongAdder();
+  private final LongAdder[] rejectedReferenceCounts = newAdders(STAGES.length);
+  private final LongAdder notificationCount = new LongAdder();
+
+  ResolutionMetrics(String injectionPoint)
+  {
+    this.injectionPoint = injectionPoint;
+  }
+
+  void resolved(long latency)
+  {
+    resolutionCount.increment();
+    totalLatency.add(latency);
+    latencyHistogram[bucket(latency)].increment();
+
+    long max = maxLatency.get();
+    while(latency > max && !maxLatency.compareAndSet(max, latency))
+      max = maxLatency.get();
+  }
+
+  void scanned(int referenceCount)
+  {
+    scannedReferenceCount.add(referenceCount);
+  }
+
+  void gotService()
+  {
+    getServiceCount.increment();
+  }
+
+  void rejected(int stage, int referenceCount)
+  {
+    if (referenceCount != 0)
+      rejectedReferenceCounts[stage].add(referenceCount);
+  }
+
+  void notified()
+  {
+    notificationCount.increment();
+  }
+
+  void reset()
+  {
+    resolutionCount.reset();
+    totalLatency.reset();
+    maxLatency.set(0);
+    for(LongAdder adder : latencyHistogram)
+      adder.reset();
+    scannedReferenceCount.reset();
+    getServiceCount.reset();
+    for(LongAdder adder : rejectedReferenceCounts)
+      adder.reset();
+    notificationCount.reset();
+  }
+
+  /**
+   * Return a copy of the current values
+   */
+  InjectionPointMetrics snapshot()
+  {
+    long[] histogram = new long[latencyHistogram.length];
+    for(int i = 0; i < histogram.length; i++)
+      histogram[i] = latencyHistogram[i].sum();
+    Map<String, Long> rejected = new LinkedHashMap<>();
+    for(int i = 0; i < STAGES.length; i++)
+      rejected.put(STAGES[i], rejectedReferenceCounts[i].sum());
+    return new Snapshot(injectionPoint, resolutionCount.sum(), totalLatency.sum(), maxLatency.get(), histogram,
+      scannedReferenceCount.sum(), getServiceCount.sum(), Collections.unmodifiableMap(rejected), notificationCount.sum());
+  }
+
+  private static int bucket(long latency)
+  {
+    for(int i = 0; i < LATENCY_BUCKET_BOUNDS.length; i++)
+    {
+      if (latency < LATENCY_BUCKET_BOUNDS[i])
+        return i;
+    }
+    return LATENCY_BUCKET_BOUNDS.length;
+  }
+
+  private static LongAdder[] newAdders(int count)
+  {
+    LongAdder[] adders = new LongAdder[count];
+    for(int i = 0; i < count; i++)
+      adders[i] = new LongAdder();
+    return adders;
+  }
+
+  /**
+   * The class <b>Snapshot</b> allows to give the metrics values at one instant.<br>
+   */
+  private static final class Snapshot implements InjectionPointMetrics
+  {
+    private final String injectionPoint;
+    private final long resolutionCount;
+    private final long totalLatency;
+    private final long maxLatency;
+    private final long[] latencyHistogram;
+    private final long scannedReferenceCount;
+    private final long getServiceCount;
+    private final Map<String, Long> rejectedReferenceCounts;
+    private final long notificationCount;
+
+    Snapshot(String injectionPoint, long resolutionCount, long totalLatency, long maxLatency, long[] latencyHistogram,
+      long scannedReferenceCount, long getServiceCount, Map<String, Long> rejectedReferenceCounts, long notificationCount)
+    {
+      this.injectionPoint = injectionPoint;
+      this.resolutionCount = resolutionCount;
+      this.totalLatency = totalLatency;
+      this.maxLatency = maxLatency;
+      this.latencyHistogram = latencyHistogram;
+      this.scannedReferenceCount = scannedReferenceCount;
+      this.getServiceCount = getServiceCount;
+      this.rejectedReferenceCounts = rejectedReferenceCounts;
+      this.notificationCount = notificationCount;
+    }
+
+    @Override
+    public String getInjectionPoint()
+    {
+      return injectionPoint;
+    }
+
+    @Override
+    public long getResolutionCount()
+    {
+      return resolutionCount;
+    }
+
+    @Override
+    public long getTotalLatencyNanos()
+    {
+      return totalLatency;
+    }
+
+    @Override
+    public long getMaxLatencyNanos()
+    {
+      return maxLatency;
+    }
+
+    @Override
+    public long[] getLatencyHistogram()
+    {
+      return latencyHistogram.clone();
+    }
+
+    @Override
+    public long getScannedReferenceCount()
+    {
+      return scannedReferenceCount;
+    }
+
+    @Override
+    public long getGetServiceCount()
+    {
+      return getServiceCount;
+    }
+
+    @Override
+    public Map<String, Long> getRejectedReferenceCounts()
+    {
+      return rejectedReferenceCounts;
+    }
+
+    @Override
+    public long getNotificationCount()
+    {
+      return notificationCount;
+    }
+
+    @Override
+    public String toString()
+    {
+      return injectionPoint + ": " + resolutionCount + " resolutions, " + totalLatency + "ns";
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package cl.annotation.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.eclipse.e4.core.di.suppliers.IRequestor;
+
+/**
+ * The class <b>SerialRequestorExecutor</b> allows to notify the requestors with an {@link Executor}.<br>
+ * The notifications of one requestor are executed in order, never concurrently, and a notification
+ * received while another one is waiting for the same requestor is merged with it.
+ */
+final class SerialRequestorExecutor
+{
+  private final Supplier<Executor> executorSupplier;
+  private final Consumer<IRequestor> action;
+  private final Map<IRequestor, RequestorQueue> queues = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor
+   * @param executorSupplier give the executor used for each new drain of a requestor queue
+   * @param action the notification of one requestor
+   */
+  SerialRequestorExecutor(Supplier<Executor> executorSupplier, Consumer<IRequestor> action)
+  {
+    this.executorSupplier = executorSupplier;
+    this.action = action;
+  }
+
+  void execute(IRequestor requestor)
+  {
+    while(true)
+    {
+      RequestorQueue queue = queues.get(requestor);
+      if (queue == null)
+      {
+        queue = new RequestorQueue(requestor);
+        RequestorQueue previous = queues.putIfAbsent(requestor, queue);
+        if (previous != null)
+          queue = previous;
+      }
+
+      // retry if the queue has just been retired
+      if (queue.schedule())
+        return;
+    }
+  }
+
+  void close()
+  {
+    queues.clear();
+  }
+
+  /**
+   * The class <b>RequestorQueue</b> allows to serialize the notifications of one requestor.<br>
+   */
+  private final class RequestorQueue implements Runnable
+  {
+    private final IRequestor requestor;
+    private boolean pending;
+    private boolean running;
+    private boolean retired;
+
+    RequestorQueue(IRequestor requestor)
+    {
+      this.requestor = requestor;
+    }
+
+    boolean schedule()
+    {
+      synchronized(this)
+      {
+        if (retired)
+          return false;
+        pending = true;
+        if (running)
+          return true;
+        running = true;
+      }
+
+      try
+      {
+        executorSupplier.get().execute(this);
+      }
+      catch(RuntimeException e)
+      {
+        synchronized(this)
+        {
+          running = false;
+        }
+        throw e;
+      }
+      return true;
+    }
+
+    @Override
+    public void run()
+    {
+      while(true)
+      {
+        synchronized(this)
+        {
+          if (!pending)
+          {
+            running = false;
+            retired = true;
+            queues.remove(requestor, this);
+            return;
+          }
+          pending = false;
+        }
+
+        try
+        {
+          action.accept(requestor);
+        }
+        catch(RuntimeException e)
+        {
+          // a failing re-injection must not stop the next ones
+          Thread thread = Thread.currentThread();
+          thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+      }
+    }
+  }
+}
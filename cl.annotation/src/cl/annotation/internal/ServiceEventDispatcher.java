@@ -0,0 +1,265 @@
+package cl.annotation.internal;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.eclipse.e4.core.di.suppliers.IRequestor;
+import org.osgi.framework.AllServiceListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The class <b>ServiceEventDispatcher</b> allows to route the service events to the tracked requestors.<br>
+ * Only one {@link ServiceListener} is registered in the service registry, the events are dispatched with an index
+ * keyed by <code>objectClass</code> so only the subscriptions of the same type evaluate their filter.
+ * Each event updates the {@link RankingIndex}, the {@link PropertyIndex}, the {@link ComponentNameIndex} and the {@link MissCache}
+ * before the subscriptions are checked. It then changes the generation of its <code>objectClass</code>, so a value resolved
+ * at the same generation is still valid.
+ */
+final class ServiceEventDispatcher implements AllServiceListener
+{
+  private final ServiceRegistry serviceRegistry;
+  private final RankingIndex rankingIndex;
+  private final PropertyIndex propertyIndex;
+  private final ComponentNameIndex componentNameIndex;
+  private final MissCache missCache;
+  private final Consumer<IRequestor> notifier;
+  private final ResultChangeChecker resultChangeChecker;
+  private final Map<String, Set<Subscription>> subscriptionsByObjectClass = new ConcurrentHashMap<>();
+  private final Map<String, Long> generations = new ConcurrentHashMap<>();
+  private final AtomicLong lastGeneration = new AtomicLong();
+  private volatile boolean registered;
+
+  ServiceEventDispatcher(ServiceRegistry serviceRegistry, RankingIndex rankingIndex, PropertyIndex propertyIndex,
+    ComponentNameIndex componentNameIndex, MissCache missCache, Consumer<IRequestor> notifier, ResultChangeChecker resultChangeChecker)
+  {
+    this.serviceRegistry = serviceRegistry;
+    this.rankingIndex = rankingIndex;
+    this.propertyIndex = propertyIndex;
+    this.componentNameIndex = componentNameIndex;
+    this.missCache = missCache;
+    this.notifier = notifier;
+    this.resultChangeChecker = resultChangeChecker;
+  }
+
+  /**
+   * Add the tracking criterion of the plan to the subscription of the requestor
+   * @return <code>false</code> if the subscription already tracks the plan
+   */
+  boolean subscribe(Subscription subscription, InjectionPlan plan)
+  {
+    if (!subscription.plans.add(plan))
+      return false;
+    plan.pin();
+
+    ensureRegistered();
+    subscriptionsByObjectClass.computeIfAbsent(plan.typeName, oc -> ConcurrentHashMap.newKeySet()).add(subscription);
+    return true;
+  }
+
+  /**
+   * Remove the tracking criterion of the plan from the subscription of the requestor
+   * @return <code>false</code> if the subscription does not track the plan
+   */
+  boolean unsubscribe(Subscription subscription, InjectionPlan plan)
+  {
+    if (!subscription.plans.remove(plan))
+      return false;
+    plan.unpin();
+    subscription.resolvedServiceIds.remove(plan);
+
+    if (!subscription.tracks(plan.typeName))
+    {
+      subscriptionsByObjectClass.computeIfPresent(plan.typeName, (oc, subscriptions) -> {
+        subscriptions.remove(subscription);
+        return subscriptions.isEmpty()? null : subscriptions;
+      });
+    }
+    return true;
+  }
+
+  void unsubscribe(Subscription subscription)
+  {
+    for(InjectionPlan plan : subscription.plans)
+      unsubscribe(subscription, plan);
+  }
+
+  synchronized void close()
+  {
+    if (registered)
+    {
+      serviceRegistry.removeServiceListener(this);
+      registered = false;
+    }
+    subscriptionsByObjectClass.clear();
+    generations.clear();
+    rankingIndex.clear();
+    propertyIndex.clear();
+    componentNameIndex.clear();
+    missCache.clear();
+  }
+
+  /**
+   * Register the listener in the framework (it must be registered before the ranking index is queried and before a miss is cached)
+   */
+  void ensureRegistered()
+  {
+    if (registered)
+      return;
+    synchronized(this)
+    {
+      if (!registered)
+      {
+        serviceRegistry.addServiceListener(this);
+        registered = true;
+      }
+    }
+  }
+
+  /**
+   * Return the generation of the objectClass, changed by each service event of the objectClass after the indexes are updated.
+   * A generation is never given twice, even after {@link #close()} (the listener must be registered before it is read).
+   */
+  long getGeneration(String objectClass)
+  {
+    Long generation = generations.get(objectClass);
+    return generation != null? generation : generations.computeIfAbsent(objectClass, oc -> lastGeneration.incrementAndGet());
+  }
+
+  @Override
+  public void serviceChanged(ServiceEvent event)
+  {
+    rankingIndex.update(event);
+    propertyIndex.update(event);
+    componentNameIndex.update(event);
+    missCache.update(event);
+
+    ServiceReference<?> ref = event.getServiceReference();
+    Object objectClasses = ref.getProperty(Constants.OBJECTCLASS);
+    if (!(objectClasses instanceof String[]))
+      return;
+
+    // the values resolved before the indexes were updated are no more reused
+    for(String objectClass : (String[]) objectClasses)
+      generations.computeIfPresent(objectClass, (oc, generation) -> lastGeneration.incrementAndGet());
+
+    // the same requestor is notified once even if several subscriptions match
+    Set<IRequestor> requestors = null;
+    for(String objectClass : (String[]) objectClasses)
+    {
+      Set<Subscription> subscriptions = subscriptionsByObjectClass.get(objectClass);
+      if (subscriptions == null)
+        continue;
+
+      for(Subscription subscription : subscriptions)
+      {
+        if (subscription.matches(objectClass, event, resultChangeChecker))
+        {
+          if (requestors == null)
+            requestors = new LinkedHashSet<>();
+          requestors.add(subscription.requestor);
+        }
+      }
+    }
+
+    if (requestors != null)
+    {
+      for(IRequestor requestor : requestors)
+        notifier.accept(requestor);
+    }
+  }
+
+  /**
+   * The class <b>Subscription</b> allows to keep the tracking criterion of a requestor.<br>
+   * The subscription is stable: it only changes when a plan is added or removed.
+   */
+  static final class Subscription
+  {
+    final IRequestor requestor;
+    final Set<InjectionPlan> plans = new CopyOnWriteArraySet<>();
+    final Map<InjectionPlan, long[]> resolvedServiceIds = new ConcurrentHashMap<>();
+
+    Subscription(IRequestor requestor)
+    {
+      this.requestor = requestor;
+    }
+
+    boolean isEmpty()
+    {
+      return plans.isEmpty();
+    }
+
+    boolean isAsync()
+    {
+      for(InjectionPlan plan : plans)
+      {
+        if (plan.asyncNotification)
+          return true;
+      }
+      return false;
+    }
+
+    boolean tracks(String objectClass)
+    {
+      for(InjectionPlan plan : plans)
+      {
+        if (plan.typeName.equals(objectClass))
+          return true;
+      }
+      return false;
+    }
+
+    boolean tracks(Class<?> desiredClass)
+    {
+      for(InjectionPlan plan : plans)
+      {
+        if (plan.desiredClass == desiredClass)
+          return true;
+      }
+      return false;
+    }
+
+    /**
+     * Check if the event changes the services injected by one of the plans of the objectClass.
+     * The collection plans are all checked because the check also updates their maintained result.
+     */
+    boolean matches(String objectClass, ServiceEvent event, ResultChangeChecker resultChangeChecker)
+    {
+      boolean changed = false;
+      for(InjectionPlan plan : plans)
+      {
+        if (!plan.typeName.equals(objectClass) || (changed && !plan.isCollection))
+          continue;
+
+        // a modified service which does not match anymore must be checked like MODIFIED_ENDMATCH
+        Filter filter = plan.serviceFilter;
+        if (filter == null || event.getType() == ServiceEvent.MODIFIED || filter.match(event.getServiceReference()))
+        {
+          if (resultChangeChecker.isResultChanged(this, plan, event))
+          {
+            plan.metrics.notified();
+            changed = true;
+          }
+        }
+      }
+      return changed;
+    }
+  }
+
+  /**
+   * The interface <b>ResultChangeChecker</b> allows to check if a service event changes the services injected by a plan.<br>
+   */
+  @FunctionalInterface
+  interface ResultChangeChecker
+  {
+    boolean isResultChanged(Subscription subscription, InjectionPlan plan, ServiceEvent event);
+  }
+}
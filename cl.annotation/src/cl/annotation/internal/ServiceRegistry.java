@@ -0,0 +1,64 @@
+package cl.annotation.internal;
+
+import java.net.URL;
+import java.util.Collection;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The interface <b>ServiceRegistry</b> allows to access the services resolved by {@link OSGiNamedObjectSupplier}.<br>
+ * {@link BundleContextServiceRegistry} accesses the OSGi framework, the in-memory registry of the test bundle
+ * (<code>cl.annotation.test.registry.InMemoryServiceRegistry</code>) gives a registry without framework for the
+ * benchmarks and the headless tests.
+ */
+public interface ServiceRegistry
+{
+  /**
+   * Return the references of all the services registered with the objectClass, whatever their class space
+   * @param filter a LDAP filter or <code>null</code>
+   * @return the references or <code>null</code> if there is no service
+   */
+  ServiceReference<?>[] getServiceReferences(String objectClass, String filter) throws InvalidSyntaxException;
+
+  /** @see org.osgi.framework.BundleContext#getService(ServiceReference) */
+  <S> S getService(ServiceReference<S> ref);
+
+  /** @see org.osgi.framework.BundleContext#ungetService(ServiceReference) */
+  boolean ungetService(ServiceReference<?> ref);
+
+  /**
+   * Add a listener, it must be an {@link org.osgi.framework.AllServiceListener} to receive the events
+   * of all the services whatever their class space
+   */
+  void addServiceListener(ServiceListener listener);
+
+  void removeServiceListener(ServiceListener listener);
+
+  /** @see org.osgi.framework.BundleContext#getBundles() */
+  Bundle[] getBundles();
+
+  /** @see org.osgi.framework.BundleContext#addBundleListener(BundleListener) */
+  void addBundleListener(BundleListener listener);
+
+  /** @see org.osgi.framework.BundleContext#removeBundleListener(BundleListener) */
+  void removeBundleListener(BundleListener listener);
+
+  /** @see org.osgi.framework.BundleContext#getProperty(String) */
+  String getProperty(String key);
+
+  /**
+   * Find the implementation class of a service without getting the service
+   * @return the class or <code>null</code> when it is unknown
+   */
+  Class<?> findImplementationClass(ServiceReference<?> ref);
+
+  /**
+   * Find the entry at the path in each bundle
+   * @param path the path of the entry, like {@link PlanIndex#RESOURCE}
+   */
+  Collection<URL> findEntries(String path);
+}
@@ -0,0 +1,157 @@
+package cl.annotation.internal;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.e4.core.di.suppliers.IRequestor;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The class <b>ServiceUsages</b> allows to keep the services acquired for the values injected in each requestor.<br>
+ * Each {@link ServiceRegistry#getService(ServiceReference)} done for an injected value is recorded and balanced by
+ * {@link ServiceRegistry#ungetService(ServiceReference)} when the value is replaced or when the requestor becomes invalid.
+ * The injected value is kept with the generation of its type, so it can be reused while no service of the type has changed.
+ */
+final class ServiceUsages
+{
+  /** number of records between two sweeps of the invalid requestors */
+  private static final int SWEEP_PERIOD = 256;
+
+  private final ServiceRegistry serviceRegistry;
+  private final Map<IRequestor, Map<InjectionPlan, Usage>> usages = new ConcurrentHashMap<>();
+  private final AtomicInteger recordCount = new AtomicInteger();
+
+  ServiceUsages(ServiceRegistry serviceRegistry)
+  {
+    this.serviceRegistry = serviceRegistry;
+  }
+
+  /**
+   * Return the last value injected by the plan in the requestor or <code>null</code>
+   */
+  Usage get(IRequestor requestor, InjectionPlan plan)
+  {
+    Map<InjectionPlan, Usage> requestorUsages = usages.get(requestor);
+    return requestorUsages == null? null : requestorUsages.get(plan);
+  }
+
+  /**
+   * Record the services acquired for the value injected by the plan and release the previous ones
+   * @param acquiredRefs one entry for each call to getService
+   * @param generation the generation of the type when the value was resolved or 0 if the value must not be reused
+   * @param value the injected value
+   */
+  void replace(IRequestor requestor, InjectionPlan plan, List<ServiceReference<?>> acquiredRefs, long generation, Object value)
+  {
+    Map<InjectionPlan, Usage> requestorUsages = usages.get(requestor);
+    if (requestorUsages == null)
+    {
+      requestorUsages = new ConcurrentHashMap<>();
+      Map<InjectionPlan, Usage> previous = usages.putIfAbsent(requestor, requestorUsages);
+      if (previous != null)
+        requestorUsages = previous;
+    }
+
+    Usage previousUsage = requestorUsages.put(plan, new Usage(acquiredRefs, generation, value));
+    if (previousUsage != null)
+      unget(serviceRegistry, previousUsage.refs);
+    else
+      plan.pin();
+
+    if (recordCount.incrementAndGet() % SWEEP_PERIOD == 0)
+      releaseInvalid();
+  }
+
+  /**
+   * Record a service acquired later for the value injected by the plan (lazy collection).
+   * The service is released immediately if the value has already been replaced.
+   * @param acquiredRefs the list given to {@link #replace(IRequestor, InjectionPlan, List, long, Object)} for the value
+   */
+  void add(IRequestor requestor, InjectionPlan plan, List<ServiceReference<?>> acquiredRefs, ServiceReference<?> ref)
+  {
+    synchronized(acquiredRefs)
+    {
+      Usage usage = get(requestor, plan);
+      if (usage != null && usage.refs == acquiredRefs)
+      {
+        acquiredRefs.add(ref);
+        return;
+      }
+    }
+    serviceRegistry.ungetService(ref);
+  }
+
+  /**
+   * Release all the services acquired for the requestor
+   */
+  void release(IRequestor requestor)
+  {
+    Map<InjectionPlan, Usage> requestorUsages = usages.remove(requestor);
+    if (requestorUsages != null)
+    {
+      for(Map.Entry<InjectionPlan, Usage> entry : requestorUsages.entrySet())
+      {
+        entry.getKey().unpin();
+        unget(serviceRegistry, entry.getValue().refs);
+      }
+    }
+  }
+
+  void releaseInvalid()
+  {
+    for(Iterator<IRequestor> iterator = usages.keySet().iterator(); iterator.hasNext();)
+    {
+      IRequestor requestor = iterator.next();
+      if (!requestor.isValid())
+        release(requestor);
+    }
+  }
+
+  void releaseAll()
+  {
+    for(IRequestor requestor : usages.keySet())
+      release(requestor);
+  }
+
+  /**
+   * Release the services of the list and clear it
+   */
+  static void unget(ServiceRegistry serviceRegistry, List<ServiceReference<?>> refs)
+  {
+    synchronized(refs)
+    {
+      for(ServiceReference<?> ref : refs)
+      {
+        try
+        {
+          serviceRegistry.ungetService(ref);
+        }
+        catch(IllegalStateException e)
+        {
+          // the bundle context is no more valid
+        }
+      }
+      refs.clear();
+    }
+  }
+
+  /**
+   * The class <b>Usage</b> allows to keep the value injected by a plan in a requestor with its acquired services.<br>
+   */
+  static final class Usage
+  {
+    final List<ServiceReference<?>> refs;
+    final long generation;
+    final Object value;
+
+    Usage(List<ServiceReference<?>> refs, long generation, Object value)
+    {
+      this.refs = refs;
+      this.generation = generation;
+      this.value = value;
+    }
+  }
+}